@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection scalability test (C10k)
+ * - the client opens connections TCP connections and keeps all of them open, then sends on the first streams
+ *   of them until time ends while the rest stay idle
+ * - the server multiplexes every connection on one Selector thread with one shared read buffer, so an idle
+ *   connection costs it a channel, a selection key and a small counter and nothing else
+ * - the server reports the memory it holds per open connection and the throughput of the active ones
+ */
+public class C10kIperfer {
+    static final int DEFAULT_CONNECTIONS = 10000;
+    private static final int BACKLOG = 4096;
+    // the server takes its memory sample once no connection has been accepted for this long
+    private static final long SAMPLE_DELAY_MS = 200;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Client Functionality
+     * - open connections connections one after another, each tuned with -w, -N and -S before it connects like
+     *   the other tests' connections, and report how long that took
+     * - send on the first streams connections with the channel engine until time ends, each on its own thread
+     * - print the usual results for the active connections, then close everything
+     */
+    public static void client(Iperfer.Options opts) {
+        InetSocketAddress address = new InetSocketAddress(opts.hostname, opts.port);
+        Iperfer.Connection[] conns = new Iperfer.Connection[opts.connections];
+        int opened = 0;
+        long connectStart = System.nanoTime();
+        try {
+            for (; opened < opts.connections; opened++) {
+                Iperfer.Connection conn = new Iperfer.Connection(SocketChannel.open());
+                try {
+                    conn.tune(opts.window, opts.noDelay, opts.tos);
+                    conn.channel.connect(address);
+                } catch (IOException e) {
+                    conn.close();
+                    throw e;
+                }
+                conns[opened] = conn;
+            }
+        } catch (IOException e) {
+            System.out.println("Error: opened only " + opened + " of " + opts.connections + " connections: " + e);
+        }
+        long connectTime = System.nanoTime() - connectStart;
+
+        try {
+            if (opened == 0) {
+                return;
+            }
+            double connectRate = connectTime == 0 ? 0 : opened * 1e9 / connectTime;
+            if (Iperfer.json != null) {
+                Map<String, Object> connections = new LinkedHashMap<>();
+                connections.put("requested", opts.connections);
+                connections.put("opened", opened);
+                connections.put("duration_ns", connectTime);
+                Iperfer.json.put("connections", connections);
+            } else {
+                System.out.printf("connections=%d opened in %.3f s (%.1f conn/s)\n", opened, connectTime / 1e9,
+                        connectRate);
+            }
+
+            int active = Math.min(opts.streams, opened);
+            opts.ring = new Payload(opts.payload, opts.length, 0);
+            Iperfer.StreamResult[] results = new Iperfer.StreamResult[active];
+            Thread[] threads = new Thread[active + 1];
+            for (int i = 0; i < active; i++) {
+                final Iperfer.Connection conn = conns[i];
+                final Iperfer.StreamResult result = new Iperfer.StreamResult();
+                results[i] = result;
+                threads[i] = new Thread(() -> Iperfer.send(conn, opts, result), "iperfer-c10k-send-" + i);
+            }
+            long omit = Iperfer.toNanos(opts.omit);
+            IntervalReporter reporter = new IntervalReporter("sent", results, Iperfer.toNanos(opts.interval),
+                    omit + Iperfer.toNanos(opts.time), omit);
+            threads[active] = new Thread(reporter, "iperfer-reporter-sent");
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Iperfer.joinAll(threads);
+
+            Iperfer.printResults("sent", results);
+            reporter.printStats();
+        } finally {
+            Iperfer.closeAll(conns);
+        }
+    }
+
+    /**
+     * Byte count of one server connection
+     */
+    private static class Stream {
+        long bytes;
+        long firstRead;
+        long lastRead;
+    }
+
+    /**
+     * Server Functionality
+     * - accept and read every connection on one Selector until the client has closed all of them
+     * - once accepting has paused, sample the JVM's heap and direct memory and the process's resident set
+     *   against a baseline taken before the first accept, each after a GC, and divide by the open connections
+     * - print the connection counts, the memory per connection and the results of the connections that sent
+     *   anything, timed from their first to their last read
+     */
+    public static void server(Iperfer.Options opts) {
+        long[] baseline = memory();
+        long[] sample = null;
+        int sampledOpen = 0;
+        int open = 0;
+        int peak = 0;
+        long accepted = 0;
+        long lastAccept = 0;
+        List<Stream> active = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            serverChannel.bind(new InetSocketAddress(opts.port), BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (accepted == 0 || open > 0) {
+                selector.select(SAMPLE_DELAY_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null) {
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ, new Stream());
+                            accepted++;
+                            open++;
+                            lastAccept = System.nanoTime();
+                        }
+                        peak = Math.max(peak, open);
+                    } else if (key.isReadable()) {
+                        if (read(key, buffer, active)) {
+                            key.cancel();
+                            key.channel().close();
+                            open--;
+                        }
+                    }
+                }
+
+                if (open > sampledOpen && System.nanoTime() - lastAccept > SAMPLE_DELAY_MS * 1000000) {
+                    sample = memory();
+                    sampledOpen = open;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Iperfer.StreamResult[] results = new Iperfer.StreamResult[active.size()];
+        for (int i = 0; i < results.length; i++) {
+            Stream stream = active.get(i);
+            results[i] = new Iperfer.StreamResult();
+            results[i].bytes.set(stream.bytes);
+            results[i].startTime = stream.firstRead;
+            results[i].endTime = stream.lastRead;
+        }
+        printConnections(accepted, peak, results.length, baseline, sample, sampledOpen);
+        if (results.length > 0) {
+            Iperfer.printResults("received", results);
+        }
+    }
+
+    /**
+     * Drains the connection into the shared buffer, returns true once the client has closed it
+     */
+    private static boolean read(SelectionKey key, ByteBuffer buffer, List<Stream> active) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Stream stream = (Stream) key.attachment();
+        int read;
+        long bytes = 0;
+        try {
+            while ((read = channel.read(buffer)) > 0) {
+                bytes += read;
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            read = -1;
+        }
+        buffer.clear();
+        if (bytes > 0) {
+            long now = System.nanoTime();
+            if (stream.bytes == 0) {
+                stream.firstRead = now;
+                active.add(stream);
+            }
+            stream.bytes += bytes;
+            stream.lastRead = now;
+        }
+        return read == -1;
+    }
+
+    /**
+     * JVM heap plus direct buffer memory in use after a GC, and the process's resident set size
+     * (0 where /proc is not available), in bytes
+     */
+    private static long[] memory() {
+        System.gc();
+        long jvm = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                jvm += pool.getMemoryUsed();
+            }
+        }
+        long rss = 0;
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    rss = Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            rss = 0;
+        }
+        return new long[] { jvm, rss };
+    }
+
+    private static void printConnections(long accepted, int peak, int active, long[] baseline, long[] sample,
+            int sampledOpen) {
+        long jvmPerConnection = 0, rssPerConnection = 0;
+        if (sample != null) {
+            jvmPerConnection = (sample[0] - baseline[0]) / sampledOpen;
+            rssPerConnection = (sample[1] - baseline[1]) / sampledOpen;
+        }
+        if (Iperfer.json != null) {
+            Map<String, Object> connections = new LinkedHashMap<>();
+            connections.put("accepted", accepted);
+            connections.put("peak", peak);
+            connections.put("active", active);
+            Iperfer.json.put("connections", connections);
+            Map<String, Object> memory = new LinkedHashMap<>();
+            memory.put("sampled_connections", sampledOpen);
+            memory.put("jvm_bytes_per_connection", jvmPerConnection);
+            memory.put("rss_bytes_per_connection", rssPerConnection);
+            Iperfer.json.put("memory", memory);
+            return;
+        }
+        System.out.printf("connections=%d peak=%d active=%d idle=%d\n", accepted, peak, active, accepted - active);
+        System.out.printf("memory per connection (%d open): heap+direct=%d B rss=%d B\n", sampledOpen,
+                jvmPerConnection, rssPerConnection);
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Control protocol between an Iperfer client and server for TCP throughput tests
+ * - the first connection of a test is the control connection, every later one is a data connection
+ * - every connection starts with a fixed HEADER_SIZE byte header, the data connection headers carry the
+ *   cookie of their control connection so the server knows which test they belong to
+ * - the server answers the control header with one status byte, ACCEPTED, REFUSED or REFUSED_VERIFY
+ * - once all data connections are done, the server sends its own per-stream byte counts and durations
+ *   back over the control connection so the client can report both ends of the test
+ *
+ * Header layout (big endian):
+ *   magic(4) version(1) type(1) flags(1) payload(1) cookie(8) streams(4) stream(4)
+ *   time ns(8) length(4) bandwidth(8) burst(8) window(4) tos(4) omit ns(8)
+ * Results layout:
+ *   streams(4), then per stream and direction (received, sent): bytes(8) omitted bytes(8) ns(8) omitted ns(8)
+ *   calls(8) thread cpu ns(8), then process cpu ns(8) elapsed ns(8)
+ * - bytes and ns cover the whole run, -O warm-up included, like calls and thread cpu which cannot be split
+ *   at the end of the warm-up; the totals leave out the omitted part, the CPU figures use the whole run
+ */
+public class Control {
+    static final int MAGIC = 0x49504652;
+    static final byte VERSION = 8;
+    static final int HEADER_SIZE = 68;
+
+    static final byte TYPE_CONTROL = 1;
+    static final byte TYPE_DATA = 2;
+    static final byte TYPE_PROBE = 3;
+
+    // flags, the default is client to server only
+    static final byte FLAG_REVERSE = 1;
+    static final byte FLAG_BIDIR = 2;
+    static final byte FLAG_NODELAY = 4;
+    static final byte FLAG_VERIFY = 8;
+    static final byte FLAG_PROBE = 16;
+    // the client sends the payload ring, rather than a -F file, so what it sends can be verified
+    static final byte FLAG_RING = 32;
+
+    static final int ACCEPTED = 0;
+    static final int REFUSED = 1;
+    // the server was started with --verify but the client does not send the payload ring
+    static final int REFUSED_VERIFY = 2;
+
+    // largest streams and length a server accepts, so a peer cannot make it allocate without bound
+    static final int MAX_STREAMS = 128;
+    static final int MAX_LENGTH = 16 << 20;
+
+    /**
+     * Decoded connection header
+     * - for a control header, the test parameters the server needs to run its end of the test
+     * - for a data header, the cookie and the index of the stream
+     */
+    static class Header {
+        byte type;
+        byte flags;
+        byte payload;
+        long cookie;
+        int streams;
+        int stream;
+        long time;
+        int length;
+        long bandwidth;
+        long burst;
+        int window;
+        int tos;
+        long omit;
+
+        boolean reverse() {
+            return (flags & FLAG_REVERSE) != 0;
+        }
+
+        boolean bidir() {
+            return (flags & FLAG_BIDIR) != 0;
+        }
+
+        boolean noDelay() {
+            return (flags & FLAG_NODELAY) != 0;
+        }
+
+        boolean verify() {
+            return (flags & FLAG_VERIFY) != 0;
+        }
+
+        boolean probe() {
+            return (flags & FLAG_PROBE) != 0;
+        }
+
+        boolean ring() {
+            return (flags & FLAG_RING) != 0;
+        }
+
+        /**
+         * Whether streams, length and bandwidth are within what a server accepts; they come straight off
+         * the network, so the server checks this before sizing or pacing anything by them
+         */
+        boolean inRange() {
+            return streams >= 1 && streams <= MAX_STREAMS && length >= 1 && length <= MAX_LENGTH
+                    && bandwidth >= 0 && (bandwidth == 0 || bandwidth >= streams);
+        }
+
+        /**
+         * Header for the latency probe connection of this test
+         */
+        Header forProbe() {
+            Header h = forStream(-1);
+            h.type = TYPE_PROBE;
+            return h;
+        }
+
+        /**
+         * Header for data connection number stream of this test
+         */
+        Header forStream(int stream) {
+            Header h = new Header();
+            h.type = TYPE_DATA;
+            h.flags = flags;
+            h.payload = payload;
+            h.cookie = cookie;
+            h.streams = streams;
+            h.stream = stream;
+            h.time = time;
+            h.length = length;
+            h.bandwidth = bandwidth;
+            h.burst = burst;
+            h.window = window;
+            h.tos = tos;
+            h.omit = omit;
+            return h;
+        }
+    }
+
+    /**
+     * Control header for a new test described by the client options, with a fresh random cookie
+     */
+    static Header newTest(Iperfer.Options opts) {
+        Header h = new Header();
+        h.type = TYPE_CONTROL;
+        if (opts.reverse) {
+            h.flags |= FLAG_REVERSE;
+        }
+        if (opts.bidir) {
+            h.flags |= FLAG_BIDIR;
+        }
+        if (opts.noDelay) {
+            h.flags |= FLAG_NODELAY;
+        }
+        if (opts.verify) {
+            h.flags |= FLAG_VERIFY;
+        }
+        if (opts.bufferbloat) {
+            h.flags |= FLAG_PROBE;
+        }
+        if (opts.file == null) {
+            h.flags |= FLAG_RING;
+        }
+        h.payload = (byte) opts.payload;
+        h.cookie = ThreadLocalRandom.current().nextLong();
+        h.streams = opts.streams;
+        h.time = Iperfer.toNanos(opts.time);
+        h.length = opts.length;
+        h.bandwidth = opts.bandwidth;
+        h.burst = opts.burst;
+        h.window = opts.window;
+        h.tos = opts.tos;
+        h.omit = Iperfer.toNanos(opts.omit);
+        return h;
+    }
+
+    static void encode(Header h, ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(h.type);
+        buffer.put(h.flags);
+        buffer.put(h.payload);
+        buffer.putLong(h.cookie);
+        buffer.putInt(h.streams);
+        buffer.putInt(h.stream);
+        buffer.putLong(h.time);
+        buffer.putInt(h.length);
+        buffer.putLong(h.bandwidth);
+        buffer.putLong(h.burst);
+        buffer.putInt(h.window);
+        buffer.putInt(h.tos);
+        buffer.putLong(h.omit);
+    }
+
+    /**
+     * Decodes a header from the next HEADER_SIZE bytes of the buffer
+     * @throws IOException if the bytes are not an Iperfer header of this version
+     */
+    static Header decode(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IOException("peer is not an Iperfer of the same version");
+        }
+        Header h = new Header();
+        h.type = buffer.get();
+        h.flags = buffer.get();
+        h.payload = buffer.get();
+        h.cookie = buffer.getLong();
+        h.streams = buffer.getInt();
+        h.stream = buffer.getInt();
+        h.time = buffer.getLong();
+        h.length = buffer.getInt();
+        h.bandwidth = buffer.getLong();
+        h.burst = buffer.getLong();
+        h.window = buffer.getInt();
+        h.tos = buffer.getInt();
+        h.omit = buffer.getLong();
+        if (h.type != TYPE_CONTROL && h.type != TYPE_DATA && h.type != TYPE_PROBE) {
+            throw new IOException("unknown connection type " + h.type);
+        }
+        return h;
+    }
+
+    static void writeHeader(OutputStream out, Header h) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        encode(h, buffer);
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    static Header readHeader(InputStream in) throws IOException {
+        byte[] bytes = new byte[HEADER_SIZE];
+        new DataInputStream(in).readFully(bytes);
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Sends the server's per-stream results, either array may be null if the server did not
+     * receive or send in this test
+     */
+    static void writeResults(OutputStream out, int streams, Iperfer.StreamResult[] received,
+            Iperfer.StreamResult[] sent, CpuUsage cpu) throws IOException {
+        out.write(encodeResults(streams, received, sent, cpu).array());
+        out.flush();
+    }
+
+    /**
+     * Encodes the server's per-stream results into a buffer ready to be written
+     * - cpu is null when the server does not measure its process CPU time
+     */
+    static ByteBuffer encodeResults(int streams, Iperfer.StreamResult[] received, Iperfer.StreamResult[] sent,
+            CpuUsage cpu) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + streams * 96 + 16);
+        buffer.putInt(streams);
+        for (int i = 0; i < streams; i++) {
+            encodeResult(buffer, received == null ? null : received[i]);
+            encodeResult(buffer, sent == null ? null : sent[i]);
+        }
+        buffer.putLong(cpu == null ? 0 : cpu.processCpu);
+        buffer.putLong(cpu == null ? 0 : cpu.elapsed);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void encodeResult(ByteBuffer buffer, Iperfer.StreamResult r) {
+        buffer.putLong(r == null ? 0 : r.bytes.get());
+        buffer.putLong(r == null ? 0 : r.omittedBytes);
+        buffer.putLong(r == null ? 0 : r.endTime - r.startTime);
+        buffer.putLong(r == null ? 0 : r.measuredStart() - r.startTime);
+        buffer.putLong(r == null ? 0 : r.calls);
+        buffer.putLong(r == null ? 0 : r.cpuTime);
+    }
+
+    /**
+     * Results the server sent back at the end of a test
+     */
+    static class Results {
+        Iperfer.StreamResult[] received;
+        Iperfer.StreamResult[] sent;
+        CpuUsage cpu = new CpuUsage();
+    }
+
+    /**
+     * Reads the server's results into received and sent arrays of stream results, whose start time is 0,
+     * end time the duration of the whole run and omitted time the end of the warm-up as measured by the
+     * server, and the server's process CPU time
+     */
+    static Results readResults(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int streams = data.readInt();
+        Results results = new Results();
+        results.received = new Iperfer.StreamResult[streams];
+        results.sent = new Iperfer.StreamResult[streams];
+        for (int i = 0; i < streams; i++) {
+            results.received[i] = readResult(data);
+            results.sent[i] = readResult(data);
+        }
+        results.cpu.processCpu = data.readLong();
+        results.cpu.elapsed = data.readLong();
+        return results;
+    }
+
+    private static Iperfer.StreamResult readResult(DataInputStream data) throws IOException {
+        Iperfer.StreamResult r = new Iperfer.StreamResult();
+        r.bytes.set(data.readLong());
+        r.omittedBytes = data.readLong();
+        r.endTime = data.readLong();
+        r.omittedTime = data.readLong();
+        r.calls = data.readLong();
+        r.cpuTime = data.readLong();
+        r.finished = true;
+        return r;
+    }
+}
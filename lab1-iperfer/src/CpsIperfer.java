@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connections-per-second test
+ * - every client thread opens a connection, sends an 8 byte count followed by connectionBytes on it and
+ *   waits for the server to close the connection, then starts over with a new connection, until time ends
+ * - the server closes as soon as it has read the announced bytes, so TIME_WAIT piles up on the server
+ *   rather than eating the client's ephemeral ports
+ * - connect latency (SYN to established) and complete latency (connect to the server's close) go into a
+ *   LatencyHistogram per thread, merged at the end
+ */
+public class CpsIperfer {
+    static final int DEFAULT_CONNECTION_BYTES = 1000;
+    private static final int HEADER_SIZE = 8;
+    // the server gives up once no connection has come in for this long
+    private static final long IDLE_TIMEOUT_MS = 2000;
+    private static final int BACKLOG = 4096;
+    // accepts taken by one worker per wake-up, so a burst of connections spreads over the workers
+    private static final int ACCEPT_BATCH = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Client Functionality
+     * - run the connect/send/close loop on streams threads until time ends
+     * - print the bytes sent, the sustained connection rate, failed connections and the connect and
+     *   complete latency percentiles over all threads
+     */
+    public static void client(Iperfer.Options opts) {
+        Iperfer.StreamResult[] results = new Iperfer.StreamResult[opts.streams];
+        LatencyHistogram[] connect = new LatencyHistogram[opts.streams];
+        LatencyHistogram[] complete = new LatencyHistogram[opts.streams];
+        Thread[] workers = new Thread[opts.streams];
+        for (int i = 0; i < opts.streams; i++) {
+            final Iperfer.StreamResult result = new Iperfer.StreamResult();
+            final LatencyHistogram connectHistogram = new LatencyHistogram();
+            final LatencyHistogram completeHistogram = new LatencyHistogram();
+            results[i] = result;
+            connect[i] = connectHistogram;
+            complete[i] = completeHistogram;
+            workers[i] = new Thread(() -> clientThread(opts, result, connectHistogram, completeHistogram),
+                    "iperfer-cps-" + i);
+            workers[i].start();
+        }
+        Iperfer.joinAll(workers);
+
+        LatencyHistogram totalConnect = new LatencyHistogram();
+        LatencyHistogram totalComplete = new LatencyHistogram();
+        long failed = 0;
+        long duration = 0;
+        for (int i = 0; i < opts.streams; i++) {
+            totalConnect.add(connect[i]);
+            totalComplete.add(complete[i]);
+            // calls counts the connections that failed
+            failed += results[i].calls;
+            duration = Math.max(duration, results[i].endTime - results[i].startTime);
+        }
+        double rate = duration == 0 ? 0 : totalComplete.getCount() * 1e9 / duration;
+
+        Iperfer.printResults("sent", results);
+        History.metric("connections_per_second", rate);
+        if (Iperfer.json != null) {
+            Map<String, Object> cps = new LinkedHashMap<>();
+            cps.put("connections", totalComplete.getCount());
+            cps.put("failed", failed);
+            cps.put("connections_per_second", rate);
+            Iperfer.json.put("cps", cps);
+        } else {
+            System.out.printf("connections=%d failed=%d rate=%.1f conn/s\n", totalComplete.getCount(), failed, rate);
+        }
+        totalConnect.print("connect", "connections");
+        totalComplete.print("complete", "connections");
+    }
+
+    private static void clientThread(Iperfer.Options opts, Iperfer.StreamResult result, LatencyHistogram connect,
+            LatencyHistogram complete) {
+        InetSocketAddress address = new InetSocketAddress(opts.hostname, opts.port);
+        ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        header.putLong(0, opts.connectionBytes);
+        ByteBuffer data = ByteBuffer.allocateDirect((int) Math.min(opts.connectionBytes, BUFFER_SIZE));
+        // the count and the first chunk go out in one gathering write, so Nagle never holds back the data
+        ByteBuffer[] first = { header, data };
+        ByteBuffer sink = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long totalBytesSent = 0;
+        long failed = 0;
+        IOException firstError = null;
+
+        long startTime = System.nanoTime();
+        long endTime = startTime + Iperfer.toNanos(opts.time);
+        result.startTime = startTime;
+        long connectStart;
+        while ((connectStart = System.nanoTime()) < endTime) {
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.connect(address);
+                connect.record(System.nanoTime() - connectStart);
+
+                header.clear();
+                data.clear();
+                long remaining = opts.connectionBytes + HEADER_SIZE;
+                remaining -= channel.write(first);
+                while (remaining > 0) {
+                    if (!data.hasRemaining()) {
+                        data.clear();
+                        if (remaining < data.capacity()) {
+                            data.limit((int) remaining);
+                        }
+                    }
+                    remaining -= channel.write(first);
+                }
+                while (channel.read(sink) != -1) {
+                    sink.clear();
+                }
+                complete.record(System.nanoTime() - connectStart);
+                totalBytesSent += opts.connectionBytes;
+                result.bytes.lazySet(totalBytesSent);
+            } catch (IOException e) {
+                // refused or reset connections and ephemeral port exhaustion show up here, count them and go on
+                failed++;
+                if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+        result.endTime = System.nanoTime();
+        result.calls = failed;
+        result.finished = true;
+        if (firstError != null && Iperfer.json == null) {
+            System.out.println("first failed connection: " + firstError);
+        }
+    }
+
+    /**
+     * Server Functionality
+     * - streams worker threads (the number of cores unless -P is given) each run their own Selector with
+     *   the listening channel registered for accepts, so connections are accepted concurrently and a worker
+     *   busy reading never holds up accepting
+     * - read each connection's count and that many bytes, then close it
+     * - stop once no connection has come in for IDLE_TIMEOUT_MS and all connections are closed
+     * - print the connections and bytes per worker and the connection rate from the first accept to the
+     *   last close
+     */
+    public static void server(Iperfer.Options opts) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(opts.port), BACKLOG);
+            serverChannel.configureBlocking(false);
+
+            Worker[] workers = new Worker[opts.streams];
+            Thread[] threads = new Thread[opts.streams];
+            for (int i = 0; i < opts.streams; i++) {
+                workers[i] = new Worker(serverChannel, workers);
+                threads[i] = new Thread(workers[i], "iperfer-cps-worker-" + i);
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Iperfer.joinAll(threads);
+
+            long connections = 0, bytes = 0;
+            long firstAccept = Long.MAX_VALUE, lastClose = 0;
+            for (int i = 0; i < workers.length; i++) {
+                Worker w = workers[i];
+                connections += w.connections;
+                bytes += w.bytes;
+                if (w.connections > 0) {
+                    firstAccept = Math.min(firstAccept, w.firstAccept);
+                    lastClose = Math.max(lastClose, w.lastClose);
+                }
+                if (Iperfer.json == null && workers.length > 1) {
+                    System.out.printf("[worker %d] connections=%d received=%d KB\n", i, w.connections,
+                            w.bytes / Iperfer.BYTES_PER_KB);
+                }
+            }
+            long duration = lastClose - firstAccept;
+            double rate = duration <= 0 ? 0 : connections * 1e9 / duration;
+            History.metric("connections_per_second", rate);
+            History.metric("received_bits_per_second", duration <= 0 ? 0 : bytes * 8e9 / duration);
+
+            if (Iperfer.json != null) {
+                Map<String, Object> cps = new LinkedHashMap<>();
+                cps.put("connections", connections);
+                cps.put("workers", workers.length);
+                cps.put("connections_per_second", rate);
+                cps.put("received", JsonReport.transfer(bytes, duration));
+                Iperfer.json.put("cps", cps);
+            } else {
+                Iperfer.printSummary(null, "received", bytes, duration);
+                System.out.printf("connections=%d workers=%d rate=%.1f conn/s\n", connections, workers.length, rate);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Progress of one server connection: the count it announced and how much of it is still to come
+     */
+    private static class Request {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long remaining;
+    }
+
+    /**
+     * One server worker: accepts from the shared listening channel and reads its own connections
+     * - all counters are written by the worker's thread only and read once the worker is done
+     */
+    private static class Worker implements Runnable {
+        private final ServerSocketChannel serverChannel;
+        private final Worker[] all;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private int open = 0;
+
+        // last accept or close, read by the other workers to decide when the server has gone idle
+        volatile long lastActivity = 0;
+        long connections = 0;
+        long bytes = 0;
+        long firstAccept = 0;
+        long lastClose = 0;
+
+        Worker(ServerSocketChannel serverChannel, Worker[] all) {
+            this.serverChannel = serverChannel;
+            this.all = all;
+        }
+
+        @Override
+        public void run() {
+            try (Selector selector = Selector.open()) {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                while (open > 0 || !idle()) {
+                    selector.select(IDLE_TIMEOUT_MS / 10);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(selector);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Idle once some worker has seen a connection and none has seen any activity for IDLE_TIMEOUT_MS
+         */
+        private boolean idle() {
+            long last = 0;
+            for (Worker w : all) {
+                last = Math.max(last, w.lastActivity);
+            }
+            return last != 0 && System.nanoTime() - last > IDLE_TIMEOUT_MS * 1000000;
+        }
+
+        private void accept(Selector selector) throws IOException {
+            for (int i = 0; i < ACCEPT_BATCH; i++) {
+                // another worker may have taken the connection already
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (connections == 0) {
+                    firstAccept = now;
+                }
+                lastActivity = now;
+                connections++;
+                open++;
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Request());
+            }
+        }
+
+        private void read(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Request request = (Request) key.attachment();
+            boolean done;
+            try {
+                int read = 0;
+                if (request.header.hasRemaining()) {
+                    read = channel.read(request.header);
+                    if (!request.header.hasRemaining()) {
+                        request.remaining = request.header.getLong(0);
+                    }
+                }
+                if (!request.header.hasRemaining()) {
+                    while (request.remaining > 0 && (read = channel.read(buffer)) > 0) {
+                        bytes += read;
+                        request.remaining -= read;
+                        buffer.clear();
+                    }
+                }
+                done = read == -1 || (!request.header.hasRemaining() && request.remaining <= 0);
+            } catch (IOException e) {
+                done = true;
+            }
+            buffer.clear();
+            if (done) {
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                open--;
+                lastClose = System.nanoTime();
+                lastActivity = lastClose;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CPU cost of a test
+ * - process CPU time comes from the OperatingSystemMXBean, the CPU time of each stream's thread from the
+ *   ThreadMXBean, both over the wall-clock time of the transfer
+ * - utilization is CPU time over wall time, 100% being one fully busy core, so a side whose stream threads
+ *   sit near 100% per stream is CPU bound rather than network bound
+ * - bytes per CPU-second relate the data a direction moved to the CPU its threads spent moving it
+ * - CPU time cannot be split at the end of a -O warm-up, so these figures cover the whole run including it
+ * - a side that did not measure (the --persistent server, which serves every test from one thread) reports
+ *   zero, and is printed as n/a rather than as an idle 0%
+ */
+public class CpuUsage {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    // process CPU time and wall time in ns, deltas once stopped
+    long processCpu;
+    long elapsed;
+
+    /**
+     * Starts measuring the process CPU time
+     */
+    static CpuUsage start() {
+        CpuUsage usage = new CpuUsage();
+        usage.processCpu = processCpuTime();
+        usage.elapsed = System.nanoTime();
+        return usage;
+    }
+
+    void stop() {
+        processCpu = processCpuTime() - processCpu;
+        elapsed = System.nanoTime() - elapsed;
+    }
+
+    /**
+     * CPU time of the calling thread in ns, 0 when the JVM cannot measure it
+     */
+    static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * CPU time of the whole process in ns, 0 when the JVM cannot measure it
+     */
+    static long processCpuTime() {
+        if (OS instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0, ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime());
+        }
+        return 0;
+    }
+
+    private static double percent(long cpu, long wall) {
+        return wall <= 0 ? 0 : cpu * 100.0 / wall;
+    }
+
+    /**
+     * Prints the process CPU line of one side of the test, label is "cpu" or "server cpu"
+     */
+    void print(String label) {
+        boolean measured = elapsed > 0;
+        double util = percent(processCpu, elapsed);
+        if (Iperfer.json != null) {
+            Map<String, Object> process = new LinkedHashMap<>();
+            process.put("cpu_ns", measured ? processCpu : null);
+            process.put("duration_ns", measured ? elapsed : null);
+            process.put("utilization_percent", measured ? util : null);
+            process.put("cores", Runtime.getRuntime().availableProcessors());
+            Iperfer.json.put(section(label), "process", process);
+            return;
+        }
+        if (!measured) {
+            System.out.println(String.format("[%s] process=n/a util=n/a", label));
+            return;
+        }
+        System.out.println(String.format("[%s] process=%.3f s util=%.1f%% cores=%d", label, processCpu / 1e9, util,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Prints the CPU cost of one direction of the test
+     * - stream threads' CPU time and utilization over the longest stream
+     * - bytes per CPU-second, and the number of write or read calls with their average size
+     */
+    static void print(String label, String direction, Iperfer.StreamResult[] results) {
+        long bytes = 0, cpu = 0, calls = 0, duration = 0;
+        for (Iperfer.StreamResult r : results) {
+            bytes += r.bytes.get();
+            cpu += r.cpuTime;
+            calls += r.calls;
+            duration = Math.max(duration, r.endTime - r.startTime);
+        }
+        double util = percent(cpu, duration);
+        double bytesPerCpuSecond = cpu <= 0 ? 0 : bytes * 1e9 / cpu;
+        long average = calls == 0 ? 0 : bytes / calls;
+        String call = direction.equals("sent") ? "writes" : "reads";
+
+        boolean measured = cpu > 0;
+
+        if (Iperfer.json != null) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("cpu_ns", measured ? cpu : null);
+            entry.put("utilization_percent", measured ? util : null);
+            entry.put("bytes_per_cpu_second", measured ? bytesPerCpuSecond : null);
+            entry.put(call, calls);
+            entry.put("bytes_per_call", average);
+            Iperfer.json.put(section(label), direction, entry);
+            return;
+        }
+        if (!measured) {
+            System.out.println(String.format("[%s %s] threads=n/a util=n/a bytes/cpu-s=n/a %s=%d avg=%d B",
+                    label, direction, call, calls, average));
+            return;
+        }
+        System.out.println(String.format("[%s %s] threads=%.3f s util=%.1f%% bytes/cpu-s=%.1f MB %s=%d avg=%d B",
+                label, direction, cpu / 1e9, util, bytesPerCpuSecond / 1e6, call, calls, average));
+    }
+
+    private static String[] section(String label) {
+        return label.startsWith("server") ? new String[]{ "server", "cpu" } : new String[]{ "end", "cpu" };
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results history with regression detection (--history file)
+ * - every run that printed results appends one line to the file: timestamp, key, then name=value for each
+ *   metric of the run; a run that failed or was refused has no metrics and leaves the file alone
+ * - the file is only ever appended to, so it doubles as a log of every successful run
+ * - the key is the test type, role, target and the options that change the numbers, so only comparable
+ *   runs are compared
+ * - metrics are the aggregate rates (bits/sec and connections/sec, higher is better) and latency
+ *   percentiles, jitter and loss (lower is better) the run printed
+ * - a new value is a regression when it is worse than the mean of the last BASELINE_RUNS runs with the same
+ *   key by more than the 95% one-sided prediction interval of that baseline (Student's t) and by at least
+ *   MIN_CHANGE, and at least MIN_RUNS runs are there to compare against
+ */
+public class History {
+    private static final int BASELINE_RUNS = 20;
+    private static final int MIN_RUNS = 3;
+    private static final double MIN_CHANGE = 0.05;
+    // one-sided 95% quantiles of Student's t for 1 to 30 degrees of freedom, the normal quantile beyond
+    private static final double[] T_95 = { 6.314, 2.920, 2.353, 2.132, 2.015, 1.943, 1.895, 1.860, 1.833, 1.812,
+            1.796, 1.782, 1.771, 1.761, 1.753, 1.746, 1.740, 1.734, 1.729, 1.725, 1.721, 1.717, 1.714, 1.711,
+            1.708, 1.706, 1.703, 1.701, 1.699, 1.697 };
+    private static final double Z_95 = 1.645;
+
+    private static final Map<String, Double> metrics = new LinkedHashMap<>();
+    // control header of the test a TCP server ran, whose parameters are the client's rather than the server's
+    private static Control.Header test;
+
+    /**
+     * Records a metric of this run, a later value of the same name replaces an earlier one
+     */
+    static synchronized void metric(String name, double value) {
+        metrics.put(name.replace(' ', '_'), value);
+    }
+
+    /**
+     * Records the control header of the test a server accepted, so the key describes the client's test
+     */
+    static synchronized void test(Control.Header header) {
+        test = header;
+    }
+
+    private static boolean higherIsBetter(String name) {
+        return name.endsWith("_per_second");
+    }
+
+    /**
+     * Key of the run: test, role, target and the options that affect the results
+     * - on a server that accepted a test, streams, length, time, omit, direction, rate, window, payload and
+     *   no-delay are taken from the client's control header, only the engine is the server's own choice
+     */
+    static synchronized String key(Iperfer.Options opts) {
+        if (test != null) {
+            Iperfer.Options tested = new Iperfer.Options();
+            tested.mode = opts.mode;
+            tested.hostname = opts.hostname;
+            tested.unixPath = opts.unixPath;
+            tested.port = opts.port;
+            tested.file = opts.file;
+            tested.nio = opts.nio;
+            tested.streams = test.streams;
+            tested.length = test.length;
+            tested.time = test.time / 1e9f;
+            tested.omit = test.omit / 1e9f;
+            tested.bidir = test.bidir();
+            tested.reverse = test.reverse();
+            tested.bandwidth = test.bandwidth;
+            tested.window = opts.window > 0 ? opts.window : test.window;
+            tested.payload = test.payload >= 0 && test.payload < Payload.NAMES.length ? test.payload : Payload.ZEROS;
+            tested.noDelay = opts.noDelay || test.noDelay();
+            opts = tested;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(Iperfer.testName(opts)).append(' ').append(opts.mode == 1 ? "client" : "server").append(' ');
+        if (opts.unixPath != null) {
+            key.append("unix:").append(opts.unixPath);
+        } else {
+            key.append(opts.hostname == null ? "" : opts.hostname).append(':').append(opts.port);
+        }
+        key.append(" P=").append(opts.streams).append(" l=").append(opts.length).append(" t=").append(opts.time);
+        key.append(" O=").append(opts.omit);
+        key.append(" engine=").append(opts.file != null ? "file" : opts.nio ? "channel" : "stream");
+        key.append(" dir=").append(opts.bidir ? "bidir" : opts.reverse ? "reverse" : "forward");
+        key.append(" b=").append(opts.bandwidth).append(" w=").append(opts.window);
+        key.append(" payload=").append(Payload.NAMES[opts.payload]);
+        if (opts.noDelay) {
+            key.append(" N");
+        }
+        if (opts.latency) {
+            key.append(" rate=").append(opts.requestRate);
+        }
+        if (opts.cps) {
+            key.append(" n=").append(opts.connectionBytes);
+        }
+        if (opts.c10k) {
+            key.append(" k=").append(opts.connections);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Compares this run's metrics against the baseline in file, prints the outcome and appends the run
+     * - does nothing for a run without metrics, which failed before it had any results
+     */
+    static synchronized void update(Path file, String key) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        List<Map<String, Double>> baseline = new ArrayList<>();
+        try {
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 2 || !fields[1].equals(key)) {
+                        continue;
+                    }
+                    Map<String, Double> run = new LinkedHashMap<>();
+                    for (int i = 2; i < fields.length; i++) {
+                        int eq = fields[i].indexOf('=');
+                        if (eq > 0) {
+                            run.put(fields[i].substring(0, eq), Double.parseDouble(fields[i].substring(eq + 1)));
+                        }
+                    }
+                    baseline.add(run);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error: cannot read history file " + file + ": " + e.getMessage());
+            return;
+        }
+        if (baseline.size() > BASELINE_RUNS) {
+            baseline = baseline.subList(baseline.size() - BASELINE_RUNS, baseline.size());
+        }
+
+        int regressions = 0;
+        Map<String, Object> compared = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            if (compare(metric.getKey(), metric.getValue(), baseline, compared)) {
+                regressions++;
+            }
+        }
+
+        StringBuilder line = new StringBuilder();
+        line.append(System.currentTimeMillis()).append('\t').append(key);
+        for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+            line.append('\t').append(metric.getKey()).append('=').append(metric.getValue());
+        }
+        line.append('\n');
+        try {
+            Files.write(file, line.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Error: cannot append to history file " + file + ": " + e.getMessage());
+        }
+
+        if (Iperfer.json != null) {
+            Map<String, Object> history = new LinkedHashMap<>();
+            history.put("key", key);
+            history.put("baseline_runs", baseline.size());
+            history.put("regressions", regressions);
+            history.put("metrics", compared);
+            Iperfer.json.put("history", history);
+            return;
+        }
+        System.out.printf("[history] %d earlier runs, %d regressions\n", baseline.size(), regressions);
+    }
+
+    /**
+     * Compares one metric against the runs in baseline that have it, returns true on a regression
+     */
+    private static boolean compare(String name, double value, List<Map<String, Double>> baseline,
+            Map<String, Object> compared) {
+        double sum = 0, sumSquares = 0;
+        int n = 0;
+        for (Map<String, Double> run : baseline) {
+            Double v = run.get(name);
+            if (v != null) {
+                sum += v;
+                sumSquares += v * v;
+                n++;
+            }
+        }
+        if (n < MIN_RUNS) {
+            return false;
+        }
+        double mean = sum / n;
+        double stddev = Math.sqrt(Math.max(0, (sumSquares - n * mean * mean) / (n - 1)));
+        double t = n - 1 <= T_95.length ? T_95[n - 2] : Z_95;
+        double margin = t * stddev * Math.sqrt(1 + 1.0 / n);
+        double change = mean == 0 ? 0 : (value - mean) / mean;
+        boolean worse = higherIsBetter(name) ? value < mean - margin && -change >= MIN_CHANGE
+                : value > mean + margin && change >= MIN_CHANGE;
+
+        if (Iperfer.json != null) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("value", value);
+            entry.put("mean", mean);
+            entry.put("stddev", stddev);
+            entry.put("runs", n);
+            entry.put("change_percent", change * 100);
+            entry.put("regression", worse);
+            compared.put(name, entry);
+        } else {
+            System.out.printf("[history] %s=%.6g baseline mean=%.6g sd=%.3g n=%d change=%+.1f%%%s\n", name, value,
+                    mean, stddev, n, change * 100, worse ? " REGRESSION" : "");
+        }
+        return worse;
+    }
+}
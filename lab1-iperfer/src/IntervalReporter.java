@@ -0,0 +1,190 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Interval reporting and test deadline
+ * - wake up every interval, sum the byte counters of all streams and print bytes and rate for that interval
+ * - on the client (duration > 0) also end the test: once duration has passed every stream is told to stop,
+ *   so the send loops only read a volatile flag instead of the clock on every write
+ * - on the server (duration == 0) run until every stream has finished
+ * - when omit > 0, mark the streams' byte counts and the time once omit has passed so the totals leave out the
+ *   warm-up; intervals during the warm-up are still printed, flagged as omitted, and a new interval starts
+ *   where the warm-up ends
+ * - keep min/mean/max of the interval rates after the warm-up for the end of the run
+ * - with a latency probe attached, print the probe's round trip times of each interval after its throughput
+ */
+public class IntervalReporter implements Runnable {
+    // how often to look at the streams when no interval or deadline is due sooner
+    private static final long POLL_NS = 10000000;
+
+    private final String direction;
+    private final Iperfer.StreamResult[] results;
+    private final long interval;
+    private final long duration;
+    private final long omit;
+    private Probe probe;
+
+    private int intervals = 0;
+    private double minRate = Double.MAX_VALUE;
+    private double maxRate = 0;
+    private double sumRate = 0;
+
+    /**
+     * @param interval nanoseconds between reports, 0 for no interval reports
+     * @param duration nanoseconds after which the streams are stopped, 0 to wait for them to finish
+     * @param omit nanoseconds of warm-up at the start left out of the totals, 0 to count everything
+     */
+    public IntervalReporter(String direction, Iperfer.StreamResult[] results, long interval, long duration,
+            long omit) {
+        this.direction = direction;
+        this.results = results;
+        this.interval = interval;
+        this.duration = duration;
+        this.omit = omit;
+    }
+
+    /**
+     * Attaches the bufferbloat probe whose round trip times are reported with every interval
+     */
+    public void setProbe(Probe probe) {
+        this.probe = probe;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+        long deadline = duration > 0 ? startTime + duration : Long.MAX_VALUE;
+        long next = interval > 0 ? startTime + interval : Long.MAX_VALUE;
+        long lastTime = startTime;
+        long lastBytes = 0;
+        boolean warmingUp = omit > 0;
+        long omitEnd = warmingUp ? startTime + omit : Long.MAX_VALUE;
+
+        while (true) {
+            long now = System.nanoTime();
+            boolean done = false;
+            if (now >= deadline) {
+                for (Iperfer.StreamResult r : results) {
+                    r.stop = true;
+                }
+                awaitFinished();
+                now = System.nanoTime();
+                done = true;
+            } else if (allFinished()) {
+                done = true;
+            }
+
+            boolean warmedUp = !done && now >= omitEnd;
+            if (interval > 0 && (now >= next || done || warmedUp) && now > lastTime) {
+                long bytes = totalBytes();
+                report(startTime, lastTime, now, bytes - lastBytes, warmingUp);
+                lastTime = now;
+                lastBytes = bytes;
+                while (next <= now) {
+                    next += interval;
+                }
+            }
+            if (done) {
+                return;
+            }
+            if (warmedUp) {
+                omitWarmUp(now);
+                warmingUp = false;
+                omitEnd = Long.MAX_VALUE;
+                next = interval > 0 ? now + interval : Long.MAX_VALUE;
+            }
+
+            long wait = Math.min(POLL_NS, Math.min(Math.min(next, deadline), omitEnd) - now);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Ends the warm-up: everything the streams moved so far is left out of their totals
+     * - a stream that has not started yet has nothing to leave out
+     */
+    private void omitWarmUp(long now) {
+        for (Iperfer.StreamResult r : results) {
+            if (r.startTime != 0) {
+                r.omittedBytes = r.bytes.get();
+                r.omittedTime = now;
+            }
+        }
+    }
+
+    private void report(long startTime, long from, long to, long bytes, boolean omitted) {
+        String label = String.format("%6.2f-%6.2f sec%s", (from - startTime) / 1e9, (to - startTime) / 1e9,
+                omitted ? " (omitted)" : "");
+        if (Iperfer.json != null) {
+            Map<String, Object> interval = JsonReport.transfer(bytes, to - from);
+            interval.put("start_ns", from - startTime);
+            interval.put("end_ns", to - startTime);
+            if (omitted) {
+                interval.put("omitted", true);
+            }
+            Iperfer.json.append(new String[] { "intervals" }, direction, interval);
+        } else {
+            Iperfer.printSummary(label, direction, bytes, to - from);
+        }
+        if (probe != null) {
+            probe.report(label, from - startTime, to - startTime);
+        }
+
+        // a short trailing interval would skew the min, so only count intervals of at least half the length
+        if (!omitted && to - from >= interval / 2) {
+            double rate = bytes * 8000.0 / (to - from);
+            intervals++;
+            minRate = Math.min(minRate, rate);
+            maxRate = Math.max(maxRate, rate);
+            sumRate += rate;
+        }
+    }
+
+    /**
+     * Prints min/mean/max of the interval rates, if any intervals were reported
+     */
+    public void printStats() {
+        if (intervals == 0) {
+            return;
+        }
+        if (Iperfer.json != null) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", intervals);
+            stats.put("min_bits_per_second", minRate * 1e6);
+            stats.put("mean_bits_per_second", sumRate / intervals * 1e6);
+            stats.put("max_bits_per_second", maxRate * 1e6);
+            Iperfer.json.put(new String[] { "interval_stats" }, direction, stats);
+            return;
+        }
+        System.out.printf("intervals=%d min=%.3f mean=%.3f max=%.3f Mbps\n",
+                intervals, minRate, sumRate / intervals, maxRate);
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (Iperfer.StreamResult r : results) {
+            if (r != null) {
+                total += r.bytes.get();
+            }
+        }
+        return total;
+    }
+
+    private boolean allFinished() {
+        for (Iperfer.StreamResult r : results) {
+            if (r == null || !r.finished) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void awaitFinished() {
+        while (!allFinished()) {
+            LockSupport.parkNanos(POLL_NS / 10);
+        }
+    }
+}
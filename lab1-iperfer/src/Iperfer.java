@@ -2,26 +2,219 @@ import java.net.*;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Iperfer {
     private static final int CHUNK_SIZE = 1000;
+    static final int BYTES_PER_KB = 1000;
+    // upper bound on bytes handed to a single FileChannel.transferTo call so the deadline is still checked often
+    private static final long TRANSFER_SIZE = 1 << 20;
+    // size of the pattern file generated when the -F file does not exist yet
+    private static final int PATTERN_FILE_SIZE = 16 << 20;
+
+    // structured results of this run when --json is given, null for the plain text report
+    static JsonReport json;
+
+    /**
+     * Parsed command line options
+     * - mode is 1 for client and 0 for server
+     * - streams is the number of parallel TCP connections (-P), defaults to 1; the server learns it from the
+     *   client over the control connection
+     * - length is the size of each write/read in bytes (-l), defaults to CHUNK_SIZE
+     * - nio selects the SocketChannel engine with a reused direct buffer (--nio)
+     * - file is the file the client sends from or the server writes to (-F), implies nio
+     * - persistent keeps the server running and serving any number of concurrent clients (--persistent)
+     * - udp switches to a datagram test (-u)
+     * - bandwidth paces the client to that many bits/sec in total over all streams (-b), 0 sends as fast as
+     *   possible (UDP defaults to 1 Mbps instead)
+     * - burst is the most bytes a stream may get ahead of its schedule (--burst), defaults to one write of length
+     *   bytes or a millisecond worth of the stream's rate, whichever is larger
+     * - interval is the number of seconds between interval reports (-i), 0 disables them
+     * - omit is the number of warm-up seconds run before time starts (-O): they show up in the interval
+     *   reports but are left out of the totals and rates, so slow start and JIT warm-up do not skew them;
+     *   neither applies to the UDP or latency tests
+     * - reverse makes the server send and the client receive (-R), bidir makes both send at once (--bidir)
+     * - json replaces the text report with one JSON document per run (--json)
+     * - window sets SO_SNDBUF and SO_RCVBUF in bytes (-w, K and M suffixes are powers of 1024), noDelay sets
+     *   TCP_NODELAY (-N), tos sets the IP traffic class (-S), -1 leaves it alone; the client's values also
+     *   apply to the server's end of the data connections unless the server sets its own
+     * - mssWrites sizes every write to one MSS of the outgoing interface (-M), replacing length
+     * - payload is what the senders write (--payload zeros, pattern or random), ring is that payload once
+     *   generated for a test; verify makes the receiving end check every byte against it (--verify)
+     * - latency switches to a request/response test (--latency) sending requestRate requests/sec
+     *   (--rate, 0 sends the next request as soon as the previous response arrives); the server serves as
+     *   many streams as the client opens, its own -P does not matter
+     * - cps switches to a connections-per-second test (--cps) sending connectionBytes on every connection
+     *   (-n), streams is the number of client threads or server workers (the number of cores by default)
+     * - c10k switches to a connection scalability test (--c10k) where the client holds connections
+     *   connections open (-k) and sends on streams of them
+     * - unixPath replaces hostname and port with a Unix domain socket at that path (-U), for the TCP and
+     *   latency tests; it always uses the channel engine and skips the TCP-only socket options
+     * - bufferbloat runs a latency probe next to the TCP test on a connection of its own (--bufferbloat),
+     *   requestRate probes per second (Probe.DEFAULT_RATE unless --rate is given)
+     * - history is a file every run appends its results to and is checked against for regressions
+     *   (--history), see History
+     */
+    static class Options {
+        int mode = -1;
+        String hostname;
+        int port;
+        float time;
+        int streams = 1;
+        int length = CHUNK_SIZE;
+        boolean nio = false;
+        String file;
+        boolean persistent = false;
+        boolean udp = false;
+        long bandwidth = 0;
+        long burst = 0;
+        float interval = 0;
+        float omit = 0;
+        boolean reverse = false;
+        boolean bidir = false;
+        boolean json = false;
+        int window = 0;
+        boolean noDelay = false;
+        int tos = -1;
+        boolean mssWrites = false;
+        int payload = Payload.ZEROS;
+        Payload ring;
+        boolean verify = false;
+        boolean latency = false;
+        double requestRate = 0;
+        boolean cps = false;
+        long connectionBytes = CpsIperfer.DEFAULT_CONNECTION_BYTES;
+        boolean c10k = false;
+        int connections = C10kIperfer.DEFAULT_CONNECTIONS;
+        boolean bufferbloat = false;
+        String unixPath;
+        String history;
+    }
+
+    /**
+     * Byte count and timing of a single TCP stream
+     * - bytes is published with lazySet from the stream's own thread so the interval reporter can read it
+     *   without adding a fence to every write
+     * - times are System.nanoTime values
+     * - stop is set by the interval reporter when the test time is over, finished by the stream when it is done
+     * - omittedBytes and omittedTime are set by the interval reporter at the end of the -O warm-up, the totals
+     *   only count what was moved after that point
+     */
+    static class StreamResult {
+        final AtomicLong bytes = new AtomicLong();
+        volatile long startTime;
+        volatile long endTime;
+        volatile boolean stop;
+        volatile boolean finished;
+        // write or read calls made and CPU time of the stream's thread in ns, set once the stream is done
+        volatile long calls;
+        volatile long cpuTime;
+        volatile long omittedBytes;
+        volatile long omittedTime;
+        // checks what a receiving stream receives, null when not verifying
+        Payload.Verifier verifier;
+
+        /**
+         * Bytes moved after the warm-up
+         */
+        long measuredBytes() {
+            return bytes.get() - omittedBytes;
+        }
+
+        /**
+         * Time the measured part of the stream started at, the end of the warm-up if there was one
+         */
+        long measuredStart() {
+            return omittedTime != 0 ? omittedTime : startTime;
+        }
+    }
 
     public static void main(String[] args) {
         // parse arguments
-        int mode = parseArgs(args);
+        Options opts = parseArgs(args);
+        if (opts.json) {
+            json = new JsonReport();
+            json.put("start", describe(opts));
+        }
 
-        if (mode == 1) {
+        if (opts.mode == 1) {
             // client mode
-            String hostname = args[2];
-            int port = Integer.parseInt(args[4]);
-            float time = Float.parseFloat(args[6]);
-            client(hostname, port, time);
+            client(opts);
         } else {
             // server mode
-            int port = Integer.parseInt(args[2]);
-            server(port);
-        } 
-         
+            server(opts);
+        }
+
+        if (opts.history != null) {
+            History.update(Paths.get(opts.history), History.key(opts));
+        }
+
+        // the persistent server prints one document per client instead
+        if (json != null && !opts.persistent) {
+            json.print();
+        }
+    }
+
+    static String testName(Options opts) {
+        return opts.udp ? "udp" : opts.latency ? "latency" : opts.cps ? "cps" : opts.c10k ? "c10k" : "tcp";
+    }
+
+    /**
+     * Test parameters for the JSON report
+     */
+    private static Map<String, Object> describe(Options opts) {
+        Map<String, Object> start = new LinkedHashMap<>();
+        start.put("timestamp_ms", System.currentTimeMillis());
+        start.put("role", opts.mode == 1 ? "client" : "server");
+        start.put("test", testName(opts));
+        if (opts.hostname != null) {
+            start.put("hostname", opts.hostname);
+        }
+        if (opts.unixPath != null) {
+            start.put("unix_path", opts.unixPath);
+        }
+        start.put("port", opts.port);
+        start.put("time_ns", toNanos(opts.time));
+        start.put("streams", opts.streams);
+        start.put("length", opts.length);
+        start.put("engine", opts.file != null ? "file" : opts.nio ? "channel" : "stream");
+        start.put("reverse", opts.reverse);
+        start.put("bidir", opts.bidir);
+        start.put("bandwidth", opts.bandwidth);
+        start.put("burst", opts.burst);
+        start.put("interval_ns", toNanos(opts.interval));
+        start.put("omit_ns", toNanos(opts.omit));
+        start.put("payload", Payload.NAMES[opts.payload]);
+        start.put("verify", opts.verify);
+        start.put("bufferbloat", opts.bufferbloat);
+        if (opts.history != null) {
+            start.put("history", opts.history);
+        }
+        if (opts.cps) {
+            start.put("connection_bytes", opts.connectionBytes);
+        }
+        if (opts.c10k) {
+            start.put("connections", opts.connections);
+        }
+        start.put("window", opts.window);
+        start.put("no_delay", opts.noDelay);
+        start.put("tos", opts.tos);
+        start.put("mss_writes", opts.mssWrites);
+        return start;
     }
     // validation method from stackoverflow: https://stackoverflow.com/questions/5667371/validate-ipv4-address-in-java
     public static boolean validate(final String ip) {
@@ -29,133 +222,1305 @@ public class Iperfer {
         return ip.matches(PATTERN);
     }
 
-    public static int parseArgs(String[] args) {
-        if (args.length > 0 && args[0].equals("-c") && args.length == 7 && args[1].equals("-h") && args[3].equals("-p") && args[5].equals("-t")) {
-            int portNumber = Integer.parseInt(args[4]);
-            boolean isValidHostname = validate(args[2]);
+    public static Options parseArgs(String[] args) {
+        Options opts = new Options();
+        if (args.length > 0 && args[0].equals("-c")) {
+            opts.mode = 1;
+        } else if (args.length > 0 && args[0].equals("-s")) {
+            opts.mode = 0;
+        } else {
+            invalidArgs();
+        }
+
+        boolean hasHost = false, hasPort = false, hasTime = false, hasLength = false, hasPayload = false,
+                hasStreams = false;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-h":
+                        opts.hostname = args[++i];
+                        hasHost = true;
+                        break;
+                    case "-p":
+                        opts.port = Integer.parseInt(args[++i]);
+                        hasPort = true;
+                        break;
+                    case "-t":
+                        opts.time = Float.parseFloat(args[++i]);
+                        hasTime = true;
+                        break;
+                    case "-P":
+                        opts.streams = Integer.parseInt(args[++i]);
+                        hasStreams = true;
+                        break;
+                    case "-l":
+                        opts.length = Integer.parseInt(args[++i]);
+                        hasLength = true;
+                        break;
+                    case "--nio":
+                        opts.nio = true;
+                        break;
+                    case "-F":
+                        opts.file = args[++i];
+                        opts.nio = true;
+                        break;
+                    case "--persistent":
+                        opts.persistent = true;
+                        break;
+                    case "-u":
+                        opts.udp = true;
+                        break;
+                    case "-b":
+                        opts.bandwidth = parseRate(args[++i]);
+                        break;
+                    case "--burst":
+                        opts.burst = Long.parseLong(args[++i]);
+                        break;
+                    case "-i":
+                        opts.interval = Float.parseFloat(args[++i]);
+                        break;
+                    case "-O":
+                        opts.omit = Float.parseFloat(args[++i]);
+                        break;
+                    case "-R":
+                        opts.reverse = true;
+                        break;
+                    case "--bidir":
+                        opts.bidir = true;
+                        break;
+                    case "--json":
+                        opts.json = true;
+                        break;
+                    case "--payload":
+                        opts.payload = Payload.parseMode(args[++i]);
+                        hasPayload = true;
+                        break;
+                    case "--verify":
+                        opts.verify = true;
+                        break;
+                    case "-w":
+                        opts.window = parseSize(args[++i]);
+                        break;
+                    case "-N":
+                        opts.noDelay = true;
+                        break;
+                    case "-S":
+                        opts.tos = Integer.decode(args[++i]);
+                        break;
+                    case "-M":
+                        opts.mssWrites = true;
+                        break;
+                    case "--latency":
+                        opts.latency = true;
+                        break;
+                    case "--rate":
+                        opts.requestRate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--cps":
+                        opts.cps = true;
+                        break;
+                    case "-n":
+                        opts.connectionBytes = Long.parseLong(args[++i]);
+                        break;
+                    case "--c10k":
+                        opts.c10k = true;
+                        break;
+                    case "--bufferbloat":
+                        opts.bufferbloat = true;
+                        break;
+                    case "-U":
+                        opts.unixPath = args[++i];
+                        break;
+                    case "--history":
+                        opts.history = args[++i];
+                        break;
+                    case "-k":
+                        opts.connections = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        invalidArgs();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            invalidArgs();
+        }
+
+        boolean unix = opts.unixPath != null;
+        if (opts.mode == 1) {
+            if ((!unix && (!hasHost || !hasPort)) || !hasTime) {
+                invalidArgs();
+            }
+            boolean isValidHostname = unix || validate(opts.hostname);
             if (!isValidHostname) {
             	System.out.println("The hostname is invalid.");
                 System.exit(0);
 
             }
             // time must be positive
-            if (Integer.parseInt(args[6]) <= 0) {
+            if (opts.time <= 0) {
             	System.out.println("Please enter a valid amount of time.");
                 System.exit(0);
 
             }
-            
-            if (portNumber < 1024 || portNumber > 65535) {
-                System.out.println("Error: port number must be in the range 1024 to 65535");
+        } else if ((!unix && !hasPort) || hasHost || hasTime) {
+            invalidArgs();
+        }
+
+        if (opts.persistent && (opts.mode != 0 || opts.file != null)) {
+            System.out.println("Error: --persistent is a server option and cannot be combined with -F");
+            System.exit(0);
+        }
+
+        if (!unix && (opts.port < 1024 || opts.port > 65535)) {
+            System.out.println("Error: port number must be in the range 1024 to 65535");
+            System.exit(0);
+        }
+
+        if (opts.streams < 1 || opts.streams > Control.MAX_STREAMS) {
+            System.out.println("Error: number of streams must be in the range 1 to " + Control.MAX_STREAMS);
+            System.exit(0);
+        }
+
+        if (opts.length < 1 || opts.length > Control.MAX_LENGTH) {
+            System.out.println("Error: buffer length must be in the range 1 to " + Control.MAX_LENGTH + " bytes");
+            System.exit(0);
+        }
+
+        if (opts.payload < 0) {
+            System.out.println("Error: payload must be one of zeros, pattern or random");
+            System.exit(0);
+        }
+
+        if ((hasPayload || opts.verify) && (opts.udp || opts.latency || opts.cps || opts.c10k
+                || (opts.file != null && opts.mode == 1) || opts.persistent)) {
+            System.out.println("Error: --payload and --verify cannot be combined with -u, --latency, --cps, --c10k,"
+                    + " --persistent or a client's -F");
+            System.exit(0);
+        }
+
+        if (opts.udp) {
+            if (opts.streams != 1 || opts.nio || opts.persistent) {
+                System.out.println("Error: -u cannot be combined with -P, --nio, -F or --persistent");
                 System.exit(0);
             }
+            // the UDP test reports only its totals
+            if (opts.interval > 0 || opts.omit > 0) {
+                System.out.println("Error: -u cannot be combined with -i or -O");
+                System.exit(0);
+            }
+            if (opts.length < UdpIperfer.HEADER_SIZE || opts.length > UdpIperfer.MAX_DATAGRAM_SIZE) {
+                System.out.println("Error: datagram length must be in the range " + UdpIperfer.HEADER_SIZE
+                        + " to " + UdpIperfer.MAX_DATAGRAM_SIZE);
+                System.exit(0);
+            }
+        }
 
-            return 1;
-        } else if (args.length > 0 && args[0].equals("-s") && args.length == 3 && args[1].equals("-p")) {
-            int portNumber = Integer.parseInt(args[2]); 
-            if (portNumber < 1024 || portNumber > 65535) {
-                System.out.println("Error: port number must be in the range 1024 to 65535");
+        if (opts.latency) {
+            if (opts.udp || opts.nio || opts.persistent) {
+                System.out.println("Error: --latency cannot be combined with -u, --nio, -F or --persistent");
+                System.exit(0);
+            }
+            // the latency test reports only its percentiles over the whole run
+            if (opts.interval > 0 || opts.omit > 0) {
+                System.out.println("Error: --latency cannot be combined with -i or -O");
                 System.exit(0);
             }
+            if (!hasLength) {
+                opts.length = LatencyIperfer.DEFAULT_MESSAGE_SIZE;
+            }
+            if (opts.length < LatencyIperfer.HEADER_SIZE) {
+                System.out.println("Error: message length must be at least " + LatencyIperfer.HEADER_SIZE + " bytes");
+                System.exit(0);
+            }
+        }
 
-            return 0;
-        } else {
-            System.out.println("Error: invalid arguments");
+        if (opts.cps) {
+            if (opts.udp || opts.latency || opts.nio || opts.persistent || opts.reverse || opts.bidir) {
+                System.out.println("Error: --cps cannot be combined with -u, --latency, --nio, -F, --persistent,"
+                        + " -R or --bidir");
+                System.exit(0);
+            }
+            if (opts.connectionBytes < 0) {
+                System.out.println("Error: bytes per connection must not be negative");
+                System.exit(0);
+            }
+            if (opts.mode == 0 && !hasStreams) {
+                opts.streams = Runtime.getRuntime().availableProcessors();
+            }
+        }
+
+        if (opts.c10k) {
+            if (opts.udp || opts.latency || opts.cps || opts.nio || opts.persistent || opts.reverse || opts.bidir) {
+                System.out.println("Error: --c10k cannot be combined with -u, --latency, --cps, --nio, -F,"
+                        + " --persistent, -R or --bidir");
+                System.exit(0);
+            }
+            if (opts.connections < 1 || opts.streams > opts.connections) {
+                System.out.println("Error: -k must be at least 1 and at least the number of active streams");
+                System.exit(0);
+            }
+        }
+
+        if (opts.bufferbloat) {
+            if (opts.mode != 1 || opts.udp || opts.latency || opts.cps || opts.c10k) {
+                System.out.println("Error: --bufferbloat is a client option for TCP throughput tests");
+                System.exit(0);
+            }
+            if (opts.requestRate == 0) {
+                opts.requestRate = Probe.DEFAULT_RATE;
+            }
+            // the probe's delay is reported per interval, so there have to be intervals
+            if (opts.interval == 0) {
+                opts.interval = 1;
+            }
+        }
+
+        if (opts.requestRate < 0) {
+            System.out.println("Error: request rate must not be negative");
             System.exit(0);
         }
 
-        return -1;
+        if (opts.reverse || opts.bidir) {
+            if (opts.mode != 1 || opts.udp || opts.latency) {
+                System.out.println("Error: -R and --bidir are client options for TCP throughput tests");
+                System.exit(0);
+            }
+            if (opts.bidir && opts.file != null) {
+                System.out.println("Error: --bidir cannot be combined with -F");
+                System.exit(0);
+            }
+        }
+
+        if (opts.window < 0 || opts.tos < -1 || opts.tos > 255) {
+            System.out.println("Error: window must not be negative and traffic class must be in the range 0 to 255");
+            System.exit(0);
+        }
+
+        if (opts.interval < 0) {
+            System.out.println("Error: interval must not be negative");
+            System.exit(0);
+        }
+
+        if (opts.omit < 0) {
+            System.out.println("Error: omit must not be negative");
+            System.exit(0);
+        }
+
+        if (opts.bandwidth < 0 || opts.burst < 0) {
+            System.out.println("Error: bandwidth and burst must not be negative");
+            System.exit(0);
+        }
+
+        // every stream is paced to an even share of -b, which must not round down to nothing
+        if (opts.bandwidth > 0 && opts.bandwidth < opts.streams) {
+            System.out.println("Error: bandwidth must be at least 1 bit/sec per stream");
+            System.exit(0);
+        }
+
+        if (opts.udp && opts.bandwidth == 0) {
+            opts.bandwidth = UdpIperfer.DEFAULT_BANDWIDTH;
+        }
+
+        // the persistent server never finishes a run to record
+        if (opts.history != null && opts.persistent) {
+            System.out.println("Error: --history cannot be combined with --persistent");
+            System.exit(0);
+        }
+
+        if (unix) {
+            if (opts.udp || opts.cps || opts.c10k || opts.persistent || opts.mssWrites) {
+                System.out.println("Error: -U cannot be combined with -u, --cps, --c10k, --persistent or -M");
+                System.exit(0);
+            }
+            opts.nio = true;
+        }
+
+        return opts;
+    }
+
+    /**
+     * Parses a rate in bits/sec with an optional K, M or G suffix (powers of 1000), e.g. 500M
+     */
+    static long parseRate(String rate) {
+        long multiplier = 1;
+        char suffix = Character.toUpperCase(rate.charAt(rate.length() - 1));
+        if (suffix == 'K') {
+            multiplier = 1000L;
+        } else if (suffix == 'M') {
+            multiplier = 1000000L;
+        } else if (suffix == 'G') {
+            multiplier = 1000000000L;
+        }
+        if (multiplier != 1) {
+            rate = rate.substring(0, rate.length() - 1);
+        }
+        return (long) (Double.parseDouble(rate) * multiplier);
+    }
+
+    /**
+     * Parses a size in bytes with an optional K or M suffix (powers of 1024), e.g. 256K
+     */
+    static int parseSize(String size) {
+        int multiplier = 1;
+        char suffix = Character.toUpperCase(size.charAt(size.length() - 1));
+        if (suffix == 'K') {
+            multiplier = 1024;
+        } else if (suffix == 'M') {
+            multiplier = 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return Integer.parseInt(size) * multiplier;
+    }
+
+    private static void invalidArgs() {
+        System.out.println("Error: invalid arguments");
+        System.exit(0);
+    }
+
+    /**
+     * Prints the summary line for a stream (or the aggregate of all streams)
+     * - label is null when running a single stream so the output matches the original format
+     * - the line is printed in one call, so lines of reporters running at the same time (--bidir -i) do not
+     *   interleave
+     */
+    static void printSummary(String label, String direction, long totalBytes, long durationNs) {
+        double bandwidth = durationNs <= 0 ? 0 : totalBytes * 8e3 / durationNs;
+
+        String prefix = label != null ? "[" + label + "] " : "";
+        System.out.println(String.format("%s%s=%d KB rate=%.3f Mbps", prefix, direction,
+                totalBytes / BYTES_PER_KB, bandwidth));
+    }
+
+    /**
+     * Prints one line per stream followed by the aggregate over the whole run
+     * - aggregate duration spans from the earliest stream start to the latest stream end
+     */
+    static void printResults(String direction, StreamResult[] results) {
+        printResults(null, direction, results);
+    }
+
+    /**
+     * Same as printResults, with every label prefixed by prefix (e.g. "server") unless it is null
+     */
+    static void printResults(String prefix, String direction, StreamResult[] results) {
+        long totalBytes = 0;
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        for (StreamResult r : results) {
+            totalBytes += r.measuredBytes();
+            startTime = Math.min(startTime, r.measuredStart());
+            endTime = Math.max(endTime, r.endTime);
+        }
+        long duration = endTime - startTime;
+        History.metric((prefix == null ? "" : prefix + "_") + direction + "_bits_per_second",
+                duration <= 0 ? 0 : totalBytes * 8e9 / duration);
+
+        if (json != null) {
+            json.addResults(prefix, direction, results);
+            return;
+        }
+        String label = prefix == null ? "" : prefix + " ";
+        if (results.length == 1) {
+            printSummary(prefix, direction, totalBytes, duration);
+            return;
+        }
+        for (int i = 0; i < results.length; i++) {
+            StreamResult r = results[i];
+            printSummary(label + i, direction, r.measuredBytes(), r.endTime - r.measuredStart());
+        }
+        printSummary(label + "SUM", direction, totalBytes, duration);
+    }
+
+    /**
+     * One TCP connection of a test, opened through either the stream engine (socket) or the
+     * channel engine (channel); the other field is null
+     */
+    static class Connection implements Closeable {
+        final Socket socket;
+        final SocketChannel channel;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.channel = null;
+        }
+
+        Connection(SocketChannel channel) {
+            this.socket = null;
+            this.channel = channel;
+        }
+
+        InputStream in() throws IOException {
+            return socket != null ? socket.getInputStream() : Channels.newInputStream(channel);
+        }
+
+        OutputStream out() throws IOException {
+            return socket != null ? socket.getOutputStream() : Channels.newOutputStream(channel);
+        }
+
+        /**
+         * Applies the socket tuning options, 0 / false / -1 keep the system default
+         * - called before connecting where possible, so the receive buffer is known when the window scale
+         *   is negotiated
+         */
+        void tune(int window, boolean noDelay, int tos) throws IOException {
+            if (socket != null) {
+                if (window > 0) {
+                    socket.setSendBufferSize(window);
+                    socket.setReceiveBufferSize(window);
+                }
+                if (noDelay) {
+                    socket.setTcpNoDelay(true);
+                }
+                if (tos >= 0) {
+                    socket.setTrafficClass(tos);
+                }
+            } else {
+                if (window > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, window);
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, window);
+                }
+                // Unix domain channels have no TCP_NODELAY or IP_TOS
+                if (noDelay && channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                if (tos >= 0 && channel.supportedOptions().contains(StandardSocketOptions.IP_TOS)) {
+                    channel.setOption(StandardSocketOptions.IP_TOS, tos);
+                }
+            }
+        }
+
+        InetAddress localAddress() throws IOException {
+            if (socket != null) {
+                return socket.getLocalAddress();
+            }
+            return ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+        }
+
+        /**
+         * Effective socket options of the connection, i.e. what the kernel granted rather than what was asked for
+         */
+        Map<String, Object> options() throws IOException {
+            Map<String, Object> options = new LinkedHashMap<>();
+            if (socket != null) {
+                options.put("SO_SNDBUF", socket.getSendBufferSize());
+                options.put("SO_RCVBUF", socket.getReceiveBufferSize());
+                options.put("TCP_NODELAY", socket.getTcpNoDelay());
+                options.put("IP_TOS", socket.getTrafficClass());
+            } else {
+                options.put("SO_SNDBUF", channel.getOption(StandardSocketOptions.SO_SNDBUF));
+                options.put("SO_RCVBUF", channel.getOption(StandardSocketOptions.SO_RCVBUF));
+                if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    options.put("TCP_NODELAY", channel.getOption(StandardSocketOptions.TCP_NODELAY));
+                    options.put("IP_TOS", channel.getOption(StandardSocketOptions.IP_TOS));
+                }
+            }
+            return options;
+        }
+
+        /**
+         * Tells the peer this side is done sending, while still letting it receive
+         */
+        void shutdownOutput() throws IOException {
+            if (socket != null) {
+                socket.shutdownOutput();
+            } else {
+                channel.shutdownOutput();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the server with the engine selected by the options
+     */
+    static Connection connect(Options opts) throws IOException {
+        SocketAddress address = address(opts);
+        Connection conn = opts.nio ? new Connection(openChannel(opts)) : new Connection(new Socket());
+        conn.tune(opts.window, opts.noDelay, opts.tos);
+        if (conn.socket != null) {
+            conn.socket.connect(address);
+        } else {
+            conn.channel.connect(address);
+        }
+        return conn;
+    }
+
+    /**
+     * Address of the server, the Unix domain socket with -U
+     */
+    static SocketAddress address(Options opts) {
+        if (opts.unixPath != null) {
+            return UnixDomainSocketAddress.of(opts.unixPath);
+        }
+        return new InetSocketAddress(opts.hostname, opts.port);
+    }
+
+    /**
+     * Unconnected channel of the transport the options ask for
+     */
+    static SocketChannel openChannel(Options opts) throws IOException {
+        return opts.unixPath != null ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+    }
+
+    /**
+     * Largest TCP payload that fits in one packet on the interface the connection goes out of,
+     * or fallback if the interface is unknown
+     */
+    private static int mss(Connection conn, int fallback) throws IOException {
+        InetAddress local = conn.localAddress();
+        NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+        if (nif == null || nif.getMTU() <= 0) {
+            return fallback;
+        }
+        // IP and TCP headers without options
+        int headers = local instanceof Inet6Address ? 60 : 40;
+        return nif.getMTU() - headers;
+    }
+
+    /**
+     * Prints the effective socket options of a data connection after the results
+     */
+    private static void printSocket(String label, Connection conn, int length) throws IOException {
+        if (json != null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder("[" + label + "]");
+        for (Map.Entry<String, Object> option : conn.options().entrySet()) {
+            line.append(' ').append(option.getKey()).append('=').append(option.getValue());
+        }
+        line.append(" length=").append(length);
+        System.out.println(line);
     }
-        
+
+    /**
+     * Listening socket for the server, using the engine selected by the options
+     */
+    static class Listener implements Closeable {
+        private final ServerSocket socket;
+        private final ServerSocketChannel channel;
+
+        private final Path unixPath;
+
+        Listener(Options opts) throws IOException {
+            this(opts, opts.nio);
+        }
+
+        /**
+         * @param useChannel listen with a ServerSocketChannel whatever the engine, for tests that need channels
+         */
+        Listener(Options opts, boolean useChannel) throws IOException {
+            unixPath = opts.unixPath != null ? Paths.get(opts.unixPath) : null;
+            if (unixPath != null) {
+                socket = null;
+                channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                // a socket file left behind by an earlier server would make bind fail
+                Files.deleteIfExists(unixPath);
+                channel.bind(UnixDomainSocketAddress.of(unixPath));
+            } else if (useChannel) {
+                socket = null;
+                channel = ServerSocketChannel.open();
+                if (opts.window > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, opts.window);
+                }
+                channel.bind(new InetSocketAddress(opts.port));
+            } else {
+                // the receive buffer is inherited by accepted sockets and has to be set before bind
+                socket = new ServerSocket();
+                if (opts.window > 0) {
+                    socket.setReceiveBufferSize(opts.window);
+                }
+                socket.bind(new InetSocketAddress(opts.port));
+                channel = null;
+            }
+        }
+
+        Connection accept() throws IOException {
+            return socket != null ? new Connection(socket.accept()) : new Connection(channel.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            } else {
+                channel.close();
+            }
+            if (unixPath != null) {
+                Files.deleteIfExists(unixPath);
+            }
+        }
+    }
+
+    static void joinAll(Thread[] workers) {
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static StreamResult[] newResults(int streams) {
+        StreamResult[] results = new StreamResult[streams];
+        for (int i = 0; i < streams; i++) {
+            results[i] = new StreamResult();
+        }
+        return results;
+    }
+
+    static void closeAll(Connection[] conns) {
+        for (Connection conn : conns) {
+            if (conn == null) {
+                continue;
+            }
+            try {
+                conn.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the sender and/or receiver of every connection on its own thread and waits for all of them
+     * - sent or received is null when this side does not send or receive
+     * - the sending side's reporter ends the test after omit plus sendTime; the receiving side runs until
+     *   every sender has shut down its output
+     * - probe is the bufferbloat probe reported with the intervals of the first reporter, or null
+     * - expected is the payload the receivers verify what they receive against, null to not verify
+     * - both sides' reporters drop the first omit ns from the totals, so the receiving side gets a reporter
+     *   even without interval reports when there is something to omit
+     * - returns the reporters, sender first, either may be null
+     */
+    private static IntervalReporter[] runTest(Connection[] conns, Options sendOpts, StreamResult[] sent,
+            int length, StreamResult[] received, Options opts, long sendTime, long omit, Payload expected,
+            Probe probe) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < conns.length; i++) {
+            final Connection conn = conns[i];
+            if (sent != null) {
+                final StreamResult result = sent[i];
+                threads.add(new Thread(() -> send(conn, sendOpts, result), "iperfer-send-" + i));
+            }
+            if (received != null) {
+                final StreamResult result = received[i];
+                if (expected != null) {
+                    result.verifier = new Payload.Verifier(expected);
+                }
+                final Path output = outputPath(opts, i, conns.length);
+                threads.add(new Thread(() -> receive(conn, length, output, result), "iperfer-receive-" + i));
+            }
+        }
+
+        IntervalReporter[] reporters = new IntervalReporter[2];
+        long interval = toNanos(opts.interval);
+        if (sent != null) {
+            reporters[0] = new IntervalReporter("sent", sent, interval, omit + sendTime, omit);
+            threads.add(new Thread(reporters[0], "iperfer-reporter-sent"));
+        }
+        if (received != null && (interval > 0 || omit > 0)) {
+            reporters[1] = new IntervalReporter("received", received, interval, 0, omit);
+            threads.add(new Thread(reporters[1], "iperfer-reporter-received"));
+        }
+
+        if (probe != null) {
+            (reporters[0] != null ? reporters[0] : reporters[1]).setProbe(probe);
+        }
+
+        Thread[] workers = threads.toArray(new Thread[0]);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        joinAll(workers);
+        return reporters;
+    }
+
     /**
      * Client Functionality
-     * - establish a TCP connection with server and send data asap (within time)
-     * - data sent in 1000 byte chunks
-     * - data is a byte array of all 0s
+     * - open the control connection and describe the test to the server
+     * - establish streams TCP connections with server and send data asap (within time) on each,
+     *   or receive on each with -R, or both at once with --bidir
+     * - every direction of every stream runs on its own thread
+     * - collect the server's results over the control connection and print both ends of the test,
+     *   per stream plus an aggregate when more than one stream is used
+     */
+    public static void client(Options opts) {
+        if (opts.udp) {
+            UdpIperfer.client(opts);
+            return;
+        }
+        if (opts.latency) {
+            LatencyIperfer.client(opts);
+            return;
+        }
+        if (opts.cps) {
+            CpsIperfer.client(opts);
+            return;
+        }
+        if (opts.c10k) {
+            C10kIperfer.client(opts);
+            return;
+        }
+        boolean sending = !opts.reverse || opts.bidir;
+        boolean receiving = opts.reverse || opts.bidir;
+        Connection[] conns = new Connection[opts.streams];
+        Connection probeConn = null;
+        try (Connection control = connect(opts)) {
+            if (opts.file != null && sending) {
+                preparePatternFile(Paths.get(opts.file));
+            }
+
+            if (opts.mssWrites) {
+                opts.length = mss(control, opts.length);
+                if (json != null) {
+                    json.put(new String[]{"start"}, "length", opts.length);
+                }
+            }
+            Control.Header header = Control.newTest(opts);
+            Control.writeHeader(control.out(), header);
+            int status = control.in().read();
+            if (status == Control.REFUSED_VERIFY) {
+                System.out.println("Error: the server verifies what it receives, which needs the payload rather"
+                        + " than a -F file");
+                return;
+            }
+            if (status != Control.ACCEPTED) {
+                System.out.println("Error: the server refused the test");
+                return;
+            }
+            for (int i = 0; i < opts.streams; i++) {
+                conns[i] = connect(opts);
+                Control.writeHeader(conns[i].out(), header.forStream(i));
+            }
+            Probe probe = null;
+            Thread probeThread = null;
+            if (opts.bufferbloat) {
+                probeConn = connect(opts);
+                probeConn.tune(0, true, -1);
+                Control.writeHeader(probeConn.out(), header.forProbe());
+                probe = new Probe(probeConn, opts.requestRate);
+                probe.measureIdle();
+                probeThread = new Thread(probe, "iperfer-probe");
+                probeThread.start();
+            }
+            // the server sends the same payload with the same length and cookie, so one ring serves both
+            if (opts.file == null && (sending || opts.verify)) {
+                opts.ring = new Payload(opts.payload, opts.length, header.cookie);
+            }
+
+            if (json != null) {
+                json.put(new String[] { "start" }, "socket", conns[0].options());
+            }
+            StreamResult[] sent = sending ? newResults(opts.streams) : null;
+            StreamResult[] received = receiving ? newResults(opts.streams) : null;
+            CpuUsage cpu = CpuUsage.start();
+            IntervalReporter[] reporters = runTest(conns, opts, sent, opts.length, received, opts, toNanos(opts.time),
+                    toNanos(opts.omit), receiving && opts.verify ? opts.ring : null, probe);
+            cpu.stop();
+            if (probe != null) {
+                probe.stop();
+                joinAll(new Thread[] { probeThread });
+                probeConn.close();
+            }
+            Control.Results remote = Control.readResults(control.in());
+
+            if (sending) {
+                printResults("sent", sent);
+                reporters[0].printStats();
+                if (opts.bandwidth > 0) {
+                    printPacing(opts.bandwidth, sent);
+                }
+                printResults("server", "received", remote.received);
+            }
+            if (receiving) {
+                printResults("received", received);
+                if (reporters[1] != null) {
+                    reporters[1].printStats();
+                }
+                printResults("server", "sent", remote.sent);
+                if (opts.verify) {
+                    Payload.printVerification(received);
+                }
+            }
+            if (probe != null) {
+                probe.print();
+            }
+            printSocket("socket", conns[0], opts.length);
+            printCpu("cpu", cpu, sent, received);
+            printCpu("server cpu", remote.cpu, receiving ? remote.sent : null, sending ? remote.received : null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeAll(conns);
+            closeAll(new Connection[] { probeConn });
+        }
+    }
+
+    /**
+     * Prints the CPU cost of one side of the test, for each direction it ran
+     */
+    private static void printCpu(String label, CpuUsage cpu, StreamResult[] sent, StreamResult[] received) {
+        cpu.print(label);
+        if (sent != null) {
+            CpuUsage.print(label, "sent", sent);
+        }
+        if (received != null) {
+            CpuUsage.print(label, "received", received);
+        }
+    }
+
+    /**
+     * Pacer for one client stream, or null when the client is not rate limited
+     * - the total bandwidth is split evenly across the streams
+     * - the default burst of a millisecond bounds how far ahead of schedule a stream may get; falling behind
+     *   is caught up separately, see Pacer
+     */
+    static Pacer newPacer(Options opts) {
+        if (opts.bandwidth == 0) {
+            return null;
+        }
+        long rate = opts.bandwidth / opts.streams;
+        long burst = opts.burst > 0 ? opts.burst : Math.max(opts.length, rate / 8 / 1000);
+        return new Pacer(rate, burst);
+    }
+
+    private static void printPacing(long bandwidth, StreamResult[] results) {
+        long totalBytes = 0;
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        for (StreamResult r : results) {
+            totalBytes += r.measuredBytes();
+            startTime = Math.min(startTime, r.measuredStart());
+            endTime = Math.max(endTime, r.endTime);
+        }
+        Pacer.printAccuracy(bandwidth, totalBytes, endTime - startTime);
+    }
+
+    static long toNanos(float seconds) {
+        return (long) (seconds * 1e9);
+    }
+
+    /**
+     * Sends on the connection with the engine it was opened with, or from the -F file
+     */
+    static void send(Connection conn, Options opts, StreamResult result) {
+        long cpu = CpuUsage.threadCpuTime();
+        if (opts.ring == null && opts.file == null) {
+            opts.ring = new Payload(Payload.ZEROS, opts.length, 0);
+        }
+        if (opts.file != null) {
+            sendFile(conn.channel, opts, result);
+        } else if (conn.channel != null) {
+            sendChannel(conn.channel, opts, result);
+        } else {
+            sendStream(conn.socket, opts, result);
+        }
+        result.cpuTime = CpuUsage.threadCpuTime() - cpu;
+    }
+
+    /**
+     * Receives on the connection with the engine it was opened with
+     */
+    static void receive(Connection conn, int length, Path output, StreamResult result) {
+        long cpu = CpuUsage.threadCpuTime();
+        if (conn.channel != null) {
+            receiveChannel(conn.channel, length, output, result);
+        } else {
+            receiveStream(conn.socket, length, result);
+        }
+        if (result.verifier != null) {
+            result.verifier.finish();
+        }
+        result.cpuTime = CpuUsage.threadCpuTime() - cpu;
+    }
+
+    /**
+     * Send stream
+     * - send data asap on the connection until the reporter says stop
+     * - data sent in length byte chunks, one buffer of the payload ring after another
      * - keep running total of bytes sent
-     * - after time ends, stop sending data and close connection
-     * - print summary containing total bytes sent and rate traffic could be sent
-     */ 
-    public static void client(String hostname, int port, float time) {
-        byte[] data = new byte[CHUNK_SIZE];
+     * - when rate limited, every write is paid for to the pacer after it is made
+     * - after time ends, stop sending data and shut down the sending half of the connection
+     */
+    private static void sendStream(Socket socket, Options opts, StreamResult result) {
+        Payload ring = opts.ring;
+        Pacer pacer = newPacer(opts);
+        long calls = 0;
         try {
-        	Socket socket = new Socket(hostname, port);
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            
+            OutputStream out = socket.getOutputStream();
+
 	    	long totalBytesSent = 0;
-			long startTime = System.currentTimeMillis();
-            long endTime = startTime + (long) (time * 1000);
-	        while (System.currentTimeMillis() < endTime) {
-	        	out.write(data);
-	        	totalBytesSent += 1000;
+            int next = 0;
+            result.startTime = System.nanoTime();
+	        while (!result.stop) {
+	        	out.write(ring.data, next * ring.length, ring.length);
+	        	calls++;
+	        	totalBytesSent += ring.length;
+                result.bytes.lazySet(totalBytesSent);
+                if (pacer != null) {
+                    pacer.acquire(ring.length);
+                }
+                if (++next == ring.count) {
+                    next = 0;
+                }
 	        }
-	        out.close();
-	        socket.close();
-	        	        
-	        long totalMbSent = (totalBytesSent * 8) / 1000000;
-	        float durationSec = (endTime - startTime) / (float) 1000;
-	        float bandwidth = totalMbSent / durationSec;
-
-            // System.out.println("start: " + startTime);
-            // System.out.println("end: " + endTime);
-            // System.out.println("duration: " + durationSec);
-            // System.out.println("Mb sent: " + totalMbSent);
-	        
-	        System.out.print("sent=" + (totalBytesSent / CHUNK_SIZE) + " KB ");
-	        System.out.printf("rate=%.3f Mbps\n", bandwidth);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+            result.endTime = System.nanoTime();
+	        socket.shutdownOutput();
 		} catch (IOException e) {
 			e.printStackTrace();
-		} 
+		} finally {
+            result.calls = calls;
+            result.finished = true;
+        }
+    }
+
+    /**
+     * Send channel
+     * - same as the send stream but writes through a blocking SocketChannel
+     * - the payload ring is copied to direct buffers up front and each buffer is rewound when its turn comes
+     *   again, so nothing is allocated or copied on the heap inside the send loop
+     */
+    private static void sendChannel(SocketChannel channel, Options opts, StreamResult result) {
+        ByteBuffer[] buffers = opts.ring.directBuffers();
+        Pacer pacer = newPacer(opts);
+        long calls = 0;
+        try {
+            long totalBytesSent = 0;
+            int next = 0;
+            result.startTime = System.nanoTime();
+            while (!result.stop) {
+                ByteBuffer buffer = buffers[next];
+                if (++next == buffers.length) {
+                    next = 0;
+                }
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    totalBytesSent += channel.write(buffer);
+                    calls++;
+                }
+                result.bytes.lazySet(totalBytesSent);
+                if (pacer != null) {
+                    pacer.acquire(buffer.limit());
+                }
+            }
+            result.endTime = System.nanoTime();
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            result.calls = calls;
+            result.finished = true;
+        }
+    }
+
+    /**
+     * Creates a pattern file through a MappedByteBuffer if the given file does not exist yet
+     * - the pattern is the repeating byte sequence 0..255 so a server-side copy can be checked by eye
+     */
+    private static void preparePatternFile(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, PATTERN_FILE_SIZE);
+            for (int i = 0; i < PATTERN_FILE_SIZE; i++) {
+                map.put((byte) i);
+            }
+            map.force();
+        }
+    }
+
+    /**
+     * Send file
+     * - same as the send channel but the payload comes from a file sent with FileChannel.transferTo,
+     *   which lets the kernel move the data with sendfile without copying it through the JVM
+     * - the file is sent from the start again whenever its end is reached, until time ends
+     * - when rate limited, each transfer is cut down to length bytes so the pacer can keep the sends smooth
+     */
+    private static void sendFile(SocketChannel channel, Options opts, StreamResult result) {
+        Pacer pacer = newPacer(opts);
+        long chunk = pacer != null ? opts.length : TRANSFER_SIZE;
+        long calls = 0;
+        try (FileChannel file = FileChannel.open(Paths.get(opts.file), StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size == 0) {
+                System.out.println("Error: file " + opts.file + " is empty");
+                return;
+            }
+
+            long totalBytesSent = 0;
+            long position = 0;
+            result.startTime = System.nanoTime();
+            while (!result.stop) {
+                long sent = file.transferTo(position, Math.min(chunk, size - position), channel);
+                calls++;
+                totalBytesSent += sent;
+                result.bytes.lazySet(totalBytesSent);
+                if (pacer != null) {
+                    pacer.acquire(sent);
+                }
+                position += sent;
+                if (position >= size) {
+                    position = 0;
+                }
+            }
+            result.endTime = System.nanoTime();
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            result.calls = calls;
+            result.finished = true;
+        }
     }
 
     /**
      * Server Functionality
-     * - listen for TCP connections from a client
-     * - receive data asap until client closes connection
-     * - data read in 1000 byte chunks
+     * - listen for a control connection and read the test description from it
+     * - accept the test's data connections and receive on each, or send on each when the client asked
+     *   for -R, or both at once for --bidir
+     * - every direction of every stream runs on its own thread
+     * - send this side's results back over the control connection
+     * - print a summary per stream and an aggregate when more than one stream is used
+     * - server should shutdown after handling the test
+     */
+    public static void server(Options opts) {
+        if (opts.udp) {
+            UdpIperfer.server(opts);
+            return;
+        }
+        if (opts.latency) {
+            LatencyIperfer.server(opts);
+            return;
+        }
+        if (opts.cps) {
+            CpsIperfer.server(opts);
+            return;
+        }
+        if (opts.c10k) {
+            C10kIperfer.server(opts);
+            return;
+        }
+        if (opts.persistent) {
+            new PersistentServer(opts.port, opts.length).run();
+            return;
+        }
+
+        Connection[] conns = null;
+        Connection probeConn = null;
+        try (Listener listener = new Listener(opts);
+             Connection control = listener.accept()) {
+            Control.Header header = Control.readHeader(control.in());
+            // a server sending from its -F file cannot send the payload the client would verify
+            if (header.type != Control.TYPE_CONTROL || !header.inRange() || (header.bidir() && opts.file != null)
+                    || (header.reverse() && header.verify() && opts.file != null)) {
+                control.out().write(Control.REFUSED);
+                return;
+            }
+            // only the payload ring can be verified, so a client sending from its -F file cannot be
+            boolean receiving = !header.reverse() || header.bidir();
+            if (opts.verify && receiving && !header.ring()) {
+                System.out.println("Error: refused a test whose client sends a file, which --verify cannot check");
+                control.out().write(Control.REFUSED_VERIFY);
+                return;
+            }
+            control.out().write(Control.ACCEPTED);
+            History.test(header);
+
+            conns = new Connection[header.streams];
+            int expectedConns = header.streams + (header.probe() ? 1 : 0);
+            for (int i = 0; i < expectedConns; i++) {
+                Connection conn = listener.accept(); // Listen for a connection
+                Control.Header data = Control.readHeader(conn.in());
+                if (data.type == Control.TYPE_PROBE && header.probe() && data.cookie == header.cookie
+                        && probeConn == null) {
+                    conn.tune(0, true, opts.tos >= 0 ? opts.tos : header.tos);
+                    probeConn = conn;
+                    continue;
+                }
+                if (data.type != Control.TYPE_DATA || data.cookie != header.cookie
+                        || data.stream < 0 || data.stream >= header.streams || conns[data.stream] != null) {
+                    conn.close();
+                    throw new IOException("unexpected connection while waiting for the test's streams");
+                }
+                conn.tune(opts.window > 0 ? opts.window : header.window, opts.noDelay || header.noDelay(),
+                        opts.tos >= 0 ? opts.tos : header.tos);
+                conns[data.stream] = conn;
+            }
+
+            boolean sending = header.reverse() || header.bidir();
+            Options sendOpts = senderOptions(opts, header);
+            if (sending && opts.file != null) {
+                preparePatternFile(Paths.get(opts.file));
+            }
+            if (json != null) {
+                String[] start = { "start" };
+                json.put(start, "streams", header.streams);
+                json.put(start, "reverse", header.reverse());
+                json.put(start, "bidir", header.bidir());
+                json.put(start, "socket", conns[0].options());
+            }
+            StreamResult[] sent = sending ? newResults(header.streams) : null;
+            StreamResult[] received = receiving ? newResults(header.streams) : null;
+            Thread echo = null;
+            if (probeConn != null) {
+                final Connection conn = probeConn;
+                echo = new Thread(() -> Probe.echo(conn), "iperfer-probe-echo");
+                echo.start();
+            }
+            CpuUsage cpu = CpuUsage.start();
+            boolean verify = receiving && header.ring() && (opts.verify || header.verify());
+            Payload expected = verify ? new Payload(header.payload, header.length, header.cookie) : null;
+            IntervalReporter[] reporters = runTest(conns, sendOpts, sent, opts.length, received, opts, header.time,
+                    header.omit, expected, null);
+            cpu.stop();
+            Control.writeResults(control.out(), header.streams, received, sent, cpu);
+            if (echo != null) {
+                // the client closes the probe once its end of the test is over
+                joinAll(new Thread[] { echo });
+            }
+
+            if (receiving) {
+                printResults("received", received);
+                if (reporters[1] != null) {
+                    reporters[1].printStats();
+                }
+                if (verify) {
+                    Payload.printVerification(received);
+                }
+            }
+            if (sending) {
+                printResults("sent", sent);
+                reporters[0].printStats();
+            }
+            printSocket("socket", conns[0], sending ? sendOpts.length : opts.length);
+            printCpu("cpu", cpu, sent, received);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (conns != null) {
+                closeAll(conns);
+            }
+            closeAll(new Connection[] { probeConn });
+        }
+    }
+
+    /**
+     * Options the server sends with, taken from the client's test description: the client's -l, -b, --burst
+     * and --payload apply to whichever end is sending, while -F stays a local choice of the server
+     */
+    private static Options senderOptions(Options opts, Control.Header header) {
+        Options sendOpts = new Options();
+        sendOpts.streams = header.streams;
+        sendOpts.length = header.length;
+        sendOpts.bandwidth = header.bandwidth;
+        sendOpts.burst = header.burst;
+        sendOpts.file = opts.file;
+        sendOpts.nio = opts.nio;
+        if (opts.file == null) {
+            sendOpts.ring = new Payload(header.payload, header.length, header.cookie);
+        }
+        return sendOpts;
+    }
+
+    /**
+     * File the given stream writes what it receives to, or null when not writing to disk
+     * - with more than one stream every stream gets its own file, suffixed with the stream number
+     */
+    private static Path outputPath(Options opts, int stream, int streams) {
+        if (opts.file == null) {
+            return null;
+        }
+        return Paths.get(streams == 1 ? opts.file : opts.file + "." + stream);
+    }
+
+    /**
+     * Receive stream
+     * - receive data asap until the peer shuts down its sending half
+     * - data read in length byte chunks into a single reused array
      * - keep running total of bytes received
-     * - print summary containing total bytes received and rate traffic could be read
-     * - server should shutdown after handling 1 connection
-     */
-    public static void server(int port) {
-		try {
-			ServerSocket socket = new ServerSocket(port);
-	    	Socket clientSocket = socket.accept(); // Listen for a connection
-	    	DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-	    	
+     */
+    private static void receiveStream(Socket socket, int length, StreamResult result) {
+        byte[] chunk = new byte[length];
+        long calls = 0;
+        try {
+	    	InputStream in = socket.getInputStream();
+
 	    	long totalBytesReceived = 0;
 	    	int read = 0;
-            long endTime = 0;
-            long startTime = System.currentTimeMillis();
+            result.startTime = System.nanoTime();
 	    	while (read != -1) {
-	    		byte[] chunk = new byte[CHUNK_SIZE];
-	    		read = in.read(chunk, 0, CHUNK_SIZE);
+	    		read = in.read(chunk, 0, length);
+	    		calls++;
 	    		if (read == -1) {
-                    endTime = System.currentTimeMillis();
+                    result.endTime = System.nanoTime();
                     break;
-                } else totalBytesReceived += read;
+                } else {
+                    totalBytesReceived += read;
+                    result.bytes.lazySet(totalBytesReceived);
+                    if (result.verifier != null) {
+                        result.verifier.update(chunk, 0, read);
+                    }
+                }
 	    	}
-	    	
-	    	in.close();
-	    	clientSocket.close();
-	    	socket.close();
-	    	
-	    	long totalMbReceived = (totalBytesReceived * 8) / 1000000;
-	    	float durationSec = (endTime - startTime) / (float) 1000;
-	    	float bandwidth = totalMbReceived / durationSec;
-
-            // System.out.println("start: " + startTime);
-            // System.out.println("end: " + endTime);
-            // System.out.println("duration: " + durationSec);
-            // System.out.println("Mb received: " + totalMbReceived * 8);
-	    	
-	        System.out.print("received=" + (totalBytesReceived / CHUNK_SIZE) + " KB ");
-	        System.out.printf("rate=%.3f Mbps\n", bandwidth);	
 	    } catch (IOException e) {
 			e.printStackTrace();
-		} 
+		} finally {
+            result.calls = calls;
+            result.finished = true;
+        }
+    }
 
+    /**
+     * Receive channel
+     * - same as the receive stream but reads from a blocking SocketChannel into one reused direct buffer
+     * - when output is set, every buffer is written to that file through a FileChannel before it is reused
+     */
+    private static void receiveChannel(SocketChannel channel, int length, Path output, StreamResult result) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        long calls = 0;
+        // a null resource is skipped when closing, so the file is closed whether or not the receive fails
+        try (FileChannel file = output == null ? null : FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long totalBytesReceived = 0;
+            result.startTime = System.nanoTime();
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                calls++;
+                totalBytesReceived += read;
+                result.bytes.lazySet(totalBytesReceived);
+                if (result.verifier != null) {
+                    buffer.flip();
+                    result.verifier.update(buffer);
+                    buffer.limit(buffer.capacity()).position(read);
+                }
+                if (file != null) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+                }
+                buffer.clear();
+            }
+            result.endTime = System.nanoTime();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            result.calls = calls;
+            result.finished = true;
+        }
     }
 }
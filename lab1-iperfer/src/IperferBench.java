@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Benchmark of Iperfer's own send/receive loops
+ * - runs Iperfer.send and Iperfer.receive against each other over loopback TCP with the stream and channel
+ *   engines, and over a Unix domain socket with the channel engine, at several buffer lengths
+ * - after a warm-up period, measures writes per second, bytes per second and the bytes allocated per write
+ *   by the sending and receiving threads together
+ * - the numbers are the ceiling of the tool on this host, so a regression here shows up before it is
+ *   mistaken for a slower network
+ *
+ * Usage: java IperferBench [warm-up seconds] [measurement seconds]
+ */
+public class IperferBench {
+    private static final int[] LENGTHS = { 1000, 8192, 65536, 131072 };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Connected pair of connections, sender first
+     */
+    private interface Transport {
+        Iperfer.Connection[] open(boolean nio) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double warmup = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        double measure = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        for (int length : LENGTHS) {
+            run("stream", "tcp", length, warmup, measure, IperferBench::openTcp, false);
+            run("channel", "tcp", length, warmup, measure, IperferBench::openTcp, true);
+            run("channel", "unix", length, warmup, measure, IperferBench::openUnix, true);
+        }
+    }
+
+    private static void run(String engine, String transport, int length, double warmup, double measure,
+            Transport open, boolean nio) throws Exception {
+        Iperfer.Connection[] conns = open.open(nio);
+        Iperfer.Options opts = new Iperfer.Options();
+        opts.length = length;
+        Iperfer.StreamResult sent = new Iperfer.StreamResult();
+        Iperfer.StreamResult received = new Iperfer.StreamResult();
+        Thread sender = new Thread(() -> Iperfer.send(conns[0], opts, sent), "bench-send");
+        Thread receiver = new Thread(() -> Iperfer.receive(conns[1], length, null, received), "bench-receive");
+        receiver.start();
+        sender.start();
+
+        Thread.sleep((long) (warmup * 1000));
+        long startTime = System.nanoTime();
+        long startBytes = sent.bytes.get();
+        long startAllocated = allocated(sender) + allocated(receiver);
+        Thread.sleep((long) (measure * 1000));
+        long endAllocated = allocated(sender) + allocated(receiver);
+        long endBytes = sent.bytes.get();
+        long endTime = System.nanoTime();
+
+        sent.stop = true;
+        sender.join();
+        receiver.join();
+        conns[0].close();
+        conns[1].close();
+
+        long bytes = endBytes - startBytes;
+        double seconds = (endTime - startTime) / 1e9;
+        double writes = (double) bytes / length;
+        System.out.printf("engine=%-7s transport=%-4s length=%-6d ops/s=%.0f bytes/s=%.0f (%.3f Mbps) alloc=%.2f B/op (%.0f B/s)\n",
+                engine, transport, length, writes / seconds, bytes / seconds, bytes * 8 / seconds / 1e6,
+                writes == 0 ? 0 : (endAllocated - startAllocated) / writes, (endAllocated - startAllocated) / seconds);
+    }
+
+    private static long allocated(Thread thread) {
+        return THREADS.getThreadAllocatedBytes(thread.getId());
+    }
+
+    private static Iperfer.Connection[] openTcp(boolean nio) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        if (nio) {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(loopback, 0));
+                SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                return new Iperfer.Connection[] { new Iperfer.Connection(client), new Iperfer.Connection(server.accept()) };
+            }
+        }
+        try (ServerSocket server = new ServerSocket(0, 1, loopback)) {
+            Socket client = new Socket(loopback, server.getLocalPort());
+            return new Iperfer.Connection[] { new Iperfer.Connection(client), new Iperfer.Connection(server.accept()) };
+        }
+    }
+
+    private static Iperfer.Connection[] openUnix(boolean nio) throws IOException {
+        Path path = Files.createTempFile("iperfer-bench", ".sock");
+        Files.delete(path);
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            SocketChannel client = SocketChannel.open(address);
+            return new Iperfer.Connection[] { new Iperfer.Connection(client), new Iperfer.Connection(server.accept()) };
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structured results of one run for --json output
+ * - a tree of objects (insertion ordered maps), lists, strings, numbers and booleans that is printed as a
+ *   single JSON document when the run is over
+ * - byte counts and nanosecond durations are kept exact, rates are derived from them as bits per second
+ * - reporter threads of the same run may add to it at the same time, so every change is synchronized
+ */
+public class JsonReport {
+    private final Map<String, Object> root = new LinkedHashMap<>();
+
+    /**
+     * Sets key in the object at path (created if missing) to value
+     */
+    public synchronized void put(String[] path, String key, Object value) {
+        section(path).put(key, value);
+    }
+
+    public synchronized void put(String key, Object value) {
+        root.put(key, value);
+    }
+
+    /**
+     * Appends value to the list under key in the object at path (both created if missing)
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void append(String[] path, String key, Object value) {
+        Map<String, Object> section = section(path);
+        List<Object> list = (List<Object>) section.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            section.put(key, list);
+        }
+        list.add(value);
+    }
+
+    /**
+     * Records per-stream results and their aggregate under prefix (or "end" for this side's own results)
+     * and direction, the JSON counterpart of Iperfer.printResults
+     */
+    public void addResults(String prefix, String direction, Iperfer.StreamResult[] results) {
+        List<Object> streams = new ArrayList<>();
+        long totalBytes = 0;
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        for (int i = 0; i < results.length; i++) {
+            Iperfer.StreamResult r = results[i];
+            Map<String, Object> stream = transfer(r.measuredBytes(), r.endTime - r.measuredStart());
+            stream.put("stream", i);
+            streams.add(stream);
+            totalBytes += r.measuredBytes();
+            startTime = Math.min(startTime, r.measuredStart());
+            endTime = Math.max(endTime, r.endTime);
+        }
+
+        String[] path = { prefix == null ? "end" : prefix, direction };
+        put(path, "streams", streams);
+        put(path, "sum", transfer(totalBytes, endTime - startTime));
+    }
+
+    /**
+     * Object describing bytes moved in durationNs nanoseconds
+     */
+    public static Map<String, Object> transfer(long bytes, long durationNs) {
+        Map<String, Object> transfer = new LinkedHashMap<>();
+        transfer.put("bytes", bytes);
+        transfer.put("duration_ns", durationNs);
+        transfer.put("bits_per_second", durationNs <= 0 ? 0.0 : bytes * 8e9 / durationNs);
+        return transfer;
+    }
+
+    public synchronized void print() {
+        StringBuilder out = new StringBuilder();
+        write(out, root);
+        System.out.println(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> section(String[] path) {
+        Map<String, Object> section = root;
+        for (String name : path) {
+            Map<String, Object> child = (Map<String, Object>) section.get(name);
+            if (child == null) {
+                child = new LinkedHashMap<>();
+                section.put(name, child);
+            }
+            section = child;
+        }
+        return section;
+    }
+
+    private static void write(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            out.append(Double.isFinite(d) ? String.valueOf(d) : "null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                write(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(out, item);
+            }
+            out.append(']');
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
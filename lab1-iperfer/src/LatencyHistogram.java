@@ -0,0 +1,140 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed-memory histogram of latencies in nanoseconds
+ * - values below SUB_BUCKETS are counted exactly
+ * - above that, every power of two is split into SUB_BUCKETS linear buckets, so a bucket is never wider
+ *   than 1/SUB_BUCKETS (about 3%) of the values it holds
+ * - recording is an array increment, nothing is allocated after construction
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // one linear range for the exact values plus one range per power of two up to 2^62
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum = 0;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value recorded in other to this histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Value at the given percentile (0-100), reported as the upper end of the bucket it falls in
+     * and never more than the largest value recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long top = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Count, min, mean, the usual percentiles and max in nanoseconds, for the JSON report
+     */
+    public Map<String, Object> toJson() {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("count", count);
+        json.put("min_ns", getMin());
+        json.put("mean_ns", getMean());
+        json.put("p50_ns", getPercentile(50));
+        json.put("p90_ns", getPercentile(90));
+        json.put("p99_ns", getPercentile(99));
+        json.put("p99_9_ns", getPercentile(99.9));
+        json.put("max_ns", getMax());
+        return json;
+    }
+
+    /**
+     * Prints count, min, mean, the usual percentiles and max in microseconds
+     */
+    public void print(String label) {
+        print(label, "requests");
+    }
+
+    /**
+     * Same as print(label), with what the recorded values were taken from in place of requests
+     */
+    public void print(String label, String counted) {
+        if (count > 0) {
+            History.metric(label + "_p50_ns", getPercentile(50));
+            History.metric(label + "_p99_ns", getPercentile(99));
+        }
+        if (Iperfer.json != null) {
+            Iperfer.json.put(label, toJson());
+            return;
+        }
+        System.out.printf("%s %s=%d min=%.1f mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f us\n",
+                label, counted, count, getMin() / 1e3, getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(90) / 1e3,
+                getPercentile(99) / 1e3, getPercentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
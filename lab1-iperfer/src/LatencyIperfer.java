@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Request/response latency test
+ * - the client sends length byte requests that start with an 8 byte sequence number, the server echoes
+ *   every byte back and the client waits for the whole response before sending the next request
+ * - round trip times go into a LatencyHistogram per stream, merged at the end
+ * - with a request rate, request n is due at start + n / rate and its latency is measured from that
+ *   due time, so a slow response also counts against the requests that had to wait behind it
+ * - every connection starts with a Control data header carrying the test's cookie, the number of streams
+ *   and its own stream index, so the server serves as many streams as the client opens whatever its own -P
+ */
+public class LatencyIperfer {
+    static final int DEFAULT_MESSAGE_SIZE = 64;
+    static final int HEADER_SIZE = 8;
+    // waits shorter than this are spun instead of parked, parkNanos is not precise enough below it
+    private static final long SPIN_THRESHOLD_NS = 100000;
+
+    /**
+     * Client Functionality
+     * - open streams connections and run the request/response loop on each until time ends
+     * - the request rate is split evenly across the streams
+     * - print the bytes exchanged and the latency percentiles over all streams
+     */
+    public static void client(Iperfer.Options opts) {
+        Control.Header test = Control.newTest(opts);
+        Iperfer.StreamResult[] results = new Iperfer.StreamResult[opts.streams];
+        LatencyHistogram[] histograms = new LatencyHistogram[opts.streams];
+        Thread[] workers = new Thread[opts.streams];
+        for (int i = 0; i < opts.streams; i++) {
+            final Control.Header header = test.forStream(i);
+            final Iperfer.StreamResult result = new Iperfer.StreamResult();
+            final LatencyHistogram histogram = new LatencyHistogram();
+            results[i] = result;
+            histograms[i] = histogram;
+            workers[i] = new Thread(() -> clientStream(opts, header, result, histogram), "iperfer-client-" + i);
+            workers[i].start();
+        }
+        Iperfer.joinAll(workers);
+
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms) {
+            total.add(histogram);
+        }
+        Iperfer.printResults("sent", results);
+        long duration = 0;
+        for (Iperfer.StreamResult r : results) {
+            duration = Math.max(duration, r.endTime - r.startTime);
+        }
+        double requestRate = duration == 0 ? 0 : total.getCount() * 1e9 / duration;
+        total.print("latency");
+        if (Iperfer.json != null) {
+            Iperfer.json.put(new String[] { "latency" }, "requests_per_second", requestRate);
+        } else {
+            System.out.printf("request rate=%.1f req/s\n", requestRate);
+        }
+    }
+
+    private static void clientStream(Iperfer.Options opts, Control.Header header, Iperfer.StreamResult result,
+            LatencyHistogram histogram) {
+        ByteBuffer request = ByteBuffer.allocateDirect(opts.length);
+        ByteBuffer response = ByteBuffer.allocateDirect(opts.length);
+        long interval = opts.requestRate > 0 ? (long) (1e9 * opts.streams / opts.requestRate) : 0;
+        try (SocketChannel channel = Iperfer.openChannel(opts)) {
+            channel.connect(Iperfer.address(opts));
+            if (opts.unixPath == null) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            Control.writeHeader(Channels.newOutputStream(channel), header);
+
+            long seq = 0;
+            long totalBytesSent = 0;
+            long startTime = System.nanoTime();
+            long endTime = startTime + Iperfer.toNanos(opts.time);
+            result.startTime = startTime;
+            long now;
+            while ((now = System.nanoTime()) < endTime) {
+                long sendTime = now;
+                if (interval > 0) {
+                    sendTime = startTime + seq * interval;
+                    if (sendTime >= endTime) {
+                        break;
+                    }
+                    waitUntil(sendTime);
+                }
+
+                request.clear();
+                request.putLong(0, seq);
+                while (request.hasRemaining()) {
+                    channel.write(request);
+                }
+                response.clear();
+                while (response.hasRemaining()) {
+                    if (channel.read(response) == -1) {
+                        throw new IOException("server closed the connection");
+                    }
+                }
+                if (response.getLong(0) != seq) {
+                    throw new IOException("response " + response.getLong(0) + " does not match request " + seq);
+                }
+                histogram.record(System.nanoTime() - sendTime);
+
+                totalBytesSent += opts.length;
+                result.bytes.lazySet(totalBytesSent);
+                seq++;
+            }
+            result.endTime = System.nanoTime();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            result.finished = true;
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Server Functionality
+     * - accept as many connections as the first one's header says the client opens, and echo everything
+     *   each one sends until it closes
+     * - print the bytes echoed per stream and in total
+     */
+    public static void server(Iperfer.Options opts) {
+        try (Iperfer.Listener listener = new Iperfer.Listener(opts, true)) {
+            Iperfer.StreamResult[] results = null;
+            Thread[] workers = null;
+            Control.Header test = null;
+            for (int i = 0; results == null || i < results.length; i++) {
+                SocketChannel channel = listener.accept().channel;
+                Control.Header header = Control.readHeader(Channels.newInputStream(channel));
+                if (test == null && header.type == Control.TYPE_DATA && header.inRange()) {
+                    test = header;
+                    results = new Iperfer.StreamResult[test.streams];
+                    workers = new Thread[test.streams];
+                }
+                if (test == null || header.type != Control.TYPE_DATA || header.cookie != test.cookie
+                        || header.stream < 0 || header.stream >= results.length || results[header.stream] != null) {
+                    channel.close();
+                    throw new IOException("unexpected connection while waiting for the test's streams");
+                }
+                final Iperfer.StreamResult result = new Iperfer.StreamResult();
+                results[header.stream] = result;
+                workers[header.stream] = new Thread(() -> serverStream(channel, opts.length, result),
+                        "iperfer-server-" + header.stream);
+                workers[header.stream].start();
+            }
+
+            Iperfer.joinAll(workers);
+            Iperfer.printResults("echoed", results);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void serverStream(SocketChannel channel, int length, Iperfer.StreamResult result) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        try {
+            if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+
+            long totalBytesEchoed = 0;
+            result.startTime = System.nanoTime();
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                totalBytesEchoed += read;
+                result.bytes.lazySet(totalBytesEchoed);
+            }
+            result.endTime = System.nanoTime();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            result.finished = true;
+        }
+    }
+}
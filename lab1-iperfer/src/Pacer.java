@@ -0,0 +1,68 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pacer that holds a stream to an absolute schedule
+ * - every byte has a due time, rate bits/sec after the previous one, measured with System.nanoTime; a write
+ *   waits until it is no more than burst bytes ahead of its due time
+ * - a stream that falls behind (descheduled, blocked in a write) keeps the credit and catches up by sending
+ *   back to back, so the long-run rate stays exact; only lag beyond CATCH_UP_NS is given up, which bounds the
+ *   burst after a long stall or an idle period
+ * - waits park for the whole remaining time rather than spinning at the end: a late wake-up only delays the
+ *   write, and the schedule catches it up, so spinning would buy smoothness at the cost of a core
+ * - a single write larger than burst still works, it just waits for its own due time
+ * - a pacer belongs to one stream and is not thread-safe
+ */
+public class Pacer {
+    // most a stream that fell behind schedule catches up
+    private static final long CATCH_UP_NS = 100000000;
+
+    private final double nanosPerByte;
+    private final double burstNanos;
+    // time the next byte is due, the schedule starts with the first acquire
+    private double due;
+    private boolean started;
+
+    public Pacer(long bitsPerSecond, long burstBytes) {
+        this.nanosPerByte = 8e9 / bitsPerSecond;
+        this.burstNanos = burstBytes * nanosPerByte;
+    }
+
+    /**
+     * Schedules bytes after the bytes acquired so far, waiting until they are at most burst bytes ahead of
+     * their due time
+     */
+    public void acquire(long bytes) {
+        long now = System.nanoTime();
+        if (!started) {
+            due = now;
+            started = true;
+        }
+        due = Math.max(due, now - CATCH_UP_NS) + bytes * nanosPerByte;
+
+        long deadline = (long) Math.ceil(due - burstNanos);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Prints how close the achieved rate came to the target rate
+     */
+    public static void printAccuracy(long bitsPerSecond, long totalBytes, long durationNs) {
+        double target = bitsPerSecond / 1e6;
+        double achieved = durationNs == 0 ? 0 : totalBytes * 8000.0 / durationNs;
+        if (Iperfer.json != null) {
+            Map<String, Object> pacing = new LinkedHashMap<>();
+            pacing.put("target_bits_per_second", bitsPerSecond);
+            pacing.put("achieved_bits_per_second", achieved * 1e6);
+            pacing.put("ratio", achieved / target);
+            Iperfer.json.put("pacing", pacing);
+            return;
+        }
+        System.out.printf("target=%.3f Mbps achieved=%.3f Mbps (%.2f%% of target)\n",
+                target, achieved, achieved * 100 / target);
+    }
+}
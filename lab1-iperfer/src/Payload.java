@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * Payload of a TCP test, a ring of count buffers of length bytes generated once before the test
+ * - zeros is all 0s, the original payload
+ * - pattern is the byte sequence 0..255 repeating over the whole ring
+ * - random is pseudo-random data seeded with the test's cookie, which compressing middleboxes and WAN
+ *   optimizers cannot shrink
+ * - senders write one buffer of the ring per write and wrap around at the end, so nothing is allocated per
+ *   write and the byte stream repeats every count * length bytes
+ * - both ends know the mode, length and cookie from the control header, so a receiver can rebuild the ring
+ *   and verify what it receives against it
+ */
+public class Payload {
+    static final int ZEROS = 0;
+    static final int PATTERN = 1;
+    static final int RANDOM = 2;
+    static final String[] NAMES = { "zeros", "pattern", "random" };
+
+    // the ring spans at least this many bytes so a random payload does not repeat within a window
+    private static final int RING_SIZE = 1 << 20;
+
+    final int mode;
+    final int length;
+    final int count;
+    final byte[] data;
+    private ByteBuffer direct;
+
+    Payload(int mode, int length, long seed) {
+        this.mode = mode;
+        this.length = length;
+        this.count = Math.max(1, RING_SIZE / length);
+        this.data = new byte[count * length];
+        if (mode == PATTERN) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+        } else if (mode == RANDOM) {
+            new SplittableRandom(seed).nextBytes(data);
+        }
+    }
+
+    /**
+     * Mode with the given name, or -1 if there is none
+     */
+    static int parseMode(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The ring as direct buffers of length bytes each, for one channel sender
+     * - the data is copied off-heap once and shared, every caller gets its own views with their own positions
+     */
+    synchronized ByteBuffer[] directBuffers() {
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer view = direct.duplicate();
+            view.position(i * length).limit((i + 1) * length);
+            buffers[i] = view.slice();
+        }
+        return buffers;
+    }
+
+    /**
+     * Checks one stream's received bytes against the ring
+     * - the stream is cut into cycles of one whole ring, whose CRC32C is compared to the ring's, so a
+     *   corrupted byte costs a mismatch of the cycle it is in and the check costs one CRC32C pass over the data
+     * - the partial cycle at the end of the stream is checked against the matching prefix of the ring
+     * - the time spent checksumming is kept to report what verification costs the receiver
+     */
+    static class Verifier {
+        private final Payload ring;
+        private final long expected;
+        private final CRC32C crc = new CRC32C();
+        private int position;
+
+        long bytes;
+        long cycles;
+        long corrupt;
+        long nanos;
+
+        Verifier(Payload ring) {
+            this.ring = ring;
+            crc.update(ring.data, 0, ring.data.length);
+            this.expected = crc.getValue();
+            crc.reset();
+        }
+
+        void update(byte[] b, int off, int len) {
+            long start = System.nanoTime();
+            while (len > 0) {
+                int n = Math.min(len, ring.data.length - position);
+                crc.update(b, off, n);
+                off += n;
+                len -= n;
+                advance(n);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Checks the bytes between the buffer's position and limit, leaving the buffer's position at its limit
+         */
+        void update(ByteBuffer buffer) {
+            long start = System.nanoTime();
+            int limit = buffer.limit();
+            while (buffer.position() < limit) {
+                int n = Math.min(limit - buffer.position(), ring.data.length - position);
+                buffer.limit(buffer.position() + n);
+                crc.update(buffer);
+                buffer.limit(limit);
+                advance(n);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        private void advance(int n) {
+            bytes += n;
+            position += n;
+            if (position == ring.data.length) {
+                check(expected);
+            }
+        }
+
+        private void check(long value) {
+            cycles++;
+            if (crc.getValue() != value) {
+                corrupt++;
+            }
+            crc.reset();
+            position = 0;
+        }
+
+        /**
+         * Checks the partial cycle at the end of the stream
+         */
+        void finish() {
+            if (position == 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            CRC32C prefix = new CRC32C();
+            prefix.update(ring.data, 0, position);
+            check(prefix.getValue());
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Prints the outcome and cost of verifying the given streams
+     * - cost is the share of the receive threads' time spent checksumming, i.e. roughly how much throughput
+     *   verification takes from a receiver that is CPU bound
+     */
+    static void printVerification(Iperfer.StreamResult[] results) {
+        long bytes = 0, cycles = 0, corrupt = 0, nanos = 0, receiveTime = 0;
+        for (Iperfer.StreamResult r : results) {
+            bytes += r.verifier.bytes;
+            cycles += r.verifier.cycles;
+            corrupt += r.verifier.corrupt;
+            nanos += r.verifier.nanos;
+            receiveTime += r.endTime - r.startTime;
+        }
+        double cost = receiveTime <= 0 ? 0 : nanos * 100.0 / receiveTime;
+        double checksumRate = nanos <= 0 ? 0 : bytes * 8e3 / nanos;
+
+        if (Iperfer.json != null) {
+            Map<String, Object> verify = new LinkedHashMap<>();
+            verify.put("bytes", bytes);
+            verify.put("cycles", cycles);
+            verify.put("corrupt", corrupt);
+            verify.put("duration_ns", nanos);
+            verify.put("cost_percent", cost);
+            Iperfer.json.put(new String[] { "end" }, "verify", verify);
+            return;
+        }
+        System.out.println(String.format("[verify] %s checked=%d KB cycles=%d corrupt=%d time=%.3f s"
+                        + " (%.1f%% of receive time) checksum rate=%.3f Mbps", corrupt == 0 ? "ok" : "CORRUPT",
+                bytes / Iperfer.BYTES_PER_KB, cycles, corrupt, nanos / 1e9, cost, checksumRate));
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent Server Functionality
+ * - keep listening for TCP connections until the process is killed
+ * - serve any number of simultaneous clients from a single Selector loop
+ * - every test (one control connection and its data connections) and every data connection keeps its own
+ *   byte count and timing
+ * - when all of a test's data connections are closed, send the results back over its control connection
+ *   and print a summary line for the client, followed by a rolling aggregate over everything received
+ *   since the server started
+ * - only client to server tests are served, -R, --bidir, -O, --verify and --bufferbloat tests are refused
+ */
+public class PersistentServer {
+    /**
+     * One test, identified by the cookie of its control connection
+     */
+    private static class Test {
+        final int id;
+        final SocketAddress remote;
+        final SelectionKey controlKey;
+        final Control.Header header;
+        final Iperfer.StreamResult[] received;
+        int finished = 0;
+
+        Test(int id, SocketAddress remote, SelectionKey controlKey, Control.Header header) {
+            this.id = id;
+            this.remote = remote;
+            this.controlKey = controlKey;
+            this.header = header;
+            this.received = new Iperfer.StreamResult[header.streams];
+        }
+    }
+
+    /**
+     * State of one accepted connection
+     * - header collects the connection header, which may arrive over several reads
+     * - test is set once the header has been read, result only for data connections
+     */
+    private static class Connection {
+        final ByteBuffer header = ByteBuffer.allocate(Control.HEADER_SIZE);
+        Test test;
+        Iperfer.StreamResult result;
+        long bytes;
+        long calls;
+    }
+
+    private final int port;
+    // every read from every data connection goes through this one buffer
+    private final ByteBuffer buffer;
+    private final Map<Long, Test> tests = new HashMap<>();
+
+    private int nextId = 0;
+    private int finished = 0;
+    private long totalBytes = 0;
+    // time spent with at least one test running, used for the aggregate rate
+    private long busyTime = 0;
+    private long busyStartTime = 0;
+
+    public PersistentServer(int port, int length) {
+        this.port = port;
+        this.buffer = ByteBuffer.allocateDirect(length);
+    }
+
+    public void run() {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel, selector);
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    /**
+     * Reads the connection header first, then drains whatever is available without blocking
+     * - a read of -1 (or a reset) means the peer is done with the connection
+     */
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        int read;
+        try {
+            if (conn.test == null) {
+                read = channel.read(conn.header);
+                if (read != -1 && !conn.header.hasRemaining()) {
+                    conn.header.flip();
+                    start(key, conn, Control.decode(conn.header));
+                }
+            } else {
+                while ((read = channel.read(buffer)) > 0) {
+                    conn.calls++;
+                    conn.bytes += read;
+                    totalBytes += read;
+                    buffer.clear();
+                }
+                if (conn.result != null) {
+                    conn.result.bytes.lazySet(conn.bytes);
+                    conn.result.calls = conn.calls;
+                }
+            }
+        } catch (IOException e) {
+            read = -1;
+        }
+        buffer.clear();
+
+        if (read == -1) {
+            close(key);
+            if (conn.result != null) {
+                conn.result.endTime = System.nanoTime();
+                finishStream(conn.test);
+            } else if (conn.test != null && tests.remove(conn.test.header.cookie) != null) {
+                // the client went away before its streams were done
+                testDone();
+            }
+        }
+    }
+
+    /**
+     * Handles a complete connection header: a control header starts a new test, a data header
+     * attaches the connection to its test
+     */
+    private void start(SelectionKey key, Connection conn, Control.Header header) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (header.type == Control.TYPE_CONTROL) {
+            if (header.reverse() || header.bidir() || header.omit > 0 || header.verify() || header.probe() || !header.inRange()) {
+                reply(channel, Control.REFUSED);
+                throw new IOException("refused test");
+            }
+            conn.test = new Test(nextId++, channel.getRemoteAddress(), key, header);
+            tests.put(header.cookie, conn.test);
+            if (tests.size() == 1) {
+                busyStartTime = System.nanoTime();
+            }
+            reply(channel, Control.ACCEPTED);
+            return;
+        }
+
+        Test test = tests.get(header.cookie);
+        if (test == null || header.stream < 0 || header.stream >= test.received.length
+                || test.received[header.stream] != null) {
+            throw new IOException("data connection for an unknown test");
+        }
+        conn.test = test;
+        conn.result = new Iperfer.StreamResult();
+        conn.result.startTime = System.nanoTime();
+        test.received[header.stream] = conn.result;
+    }
+
+    private void reply(SocketChannel channel, int status) throws IOException {
+        ByteBuffer reply = ByteBuffer.allocate(1);
+        reply.put(0, (byte) status);
+        while (reply.hasRemaining()) {
+            channel.write(reply);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called when one data connection of the test is closed, finishes the test after the last one
+     */
+    private void finishStream(Test test) {
+        test.finished++;
+        if (test.finished < test.received.length || tests.remove(test.header.cookie) == null) {
+            return;
+        }
+
+        // the results are a few bytes per stream, so the control channel's send buffer takes them at once
+        SocketChannel control = (SocketChannel) test.controlKey.channel();
+        ByteBuffer results = Control.encodeResults(test.received.length, test.received, null, null);
+        try {
+            while (results.hasRemaining()) {
+                control.write(results);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        close(test.controlKey);
+        long busy = testDone();
+
+        if (Iperfer.json != null) {
+            // one document per client, since the server itself never finishes
+            JsonReport report = new JsonReport();
+            report.put("client", test.id);
+            report.put("remote", String.valueOf(test.remote));
+            report.addResults(null, "received", test.received);
+            Map<String, Object> aggregate = JsonReport.transfer(totalBytes, busy);
+            aggregate.put("clients", finished);
+            aggregate.put("active", tests.size());
+            report.put("aggregate", aggregate);
+            report.print();
+            return;
+        }
+        Iperfer.printResults(test.id + " " + test.remote, "received", test.received);
+        Iperfer.printSummary("SUM clients=" + finished + " active=" + tests.size(), "received", totalBytes, busy);
+    }
+
+    /**
+     * Bookkeeping for a test that is no longer running, returns the busy time so far
+     */
+    private long testDone() {
+        finished++;
+        long busy = busyTime + (System.nanoTime() - busyStartTime);
+        if (tests.isEmpty()) {
+            busyTime = busy;
+        }
+        return busy;
+    }
+}
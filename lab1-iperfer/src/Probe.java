@@ -0,0 +1,151 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency probe of the bufferbloat test
+ * - runs next to the bulk transfer on its own connection of the test, the server echoes every byte back
+ * - the client sends a SIZE byte request rate times a second and waits for the whole echo, so the probe
+ *   itself adds next to no load and its round trip time is the delay of the queues the bulk transfer fills
+ * - a few back-to-back probes before the bulk transfer starts give the idle round trip time to compare against
+ * - round trip times go into an interval histogram, swapped out by the interval reporter, and a total one
+ */
+public class Probe implements Runnable {
+    static final int SIZE = 64;
+    static final double DEFAULT_RATE = 10;
+    private static final int IDLE_PROBES = 10;
+
+    private final Iperfer.Connection conn;
+    private final long period;
+    private final byte[] request = new byte[SIZE];
+    private final byte[] response = new byte[SIZE];
+    private final LatencyHistogram idle = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private LatencyHistogram interval = new LatencyHistogram();
+    private volatile boolean stop;
+
+    /**
+     * @param rate probes per second
+     */
+    Probe(Iperfer.Connection conn, double rate) {
+        this.conn = conn;
+        this.period = (long) (1e9 / rate);
+    }
+
+    /**
+     * Measures the idle round trip time, call before the bulk transfer starts
+     */
+    void measureIdle() throws IOException {
+        OutputStream out = conn.out();
+        DataInputStream in = new DataInputStream(conn.in());
+        for (int i = 0; i < IDLE_PROBES; i++) {
+            idle.record(roundTrip(out, in));
+        }
+    }
+
+    private long roundTrip(OutputStream out, DataInputStream in) throws IOException {
+        long start = System.nanoTime();
+        out.write(request);
+        out.flush();
+        in.readFully(response);
+        return System.nanoTime() - start;
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream out = conn.out();
+            DataInputStream in = new DataInputStream(conn.in());
+            long next = System.nanoTime();
+            while (!stop) {
+                long rtt = roundTrip(out, in);
+                synchronized (this) {
+                    interval.record(rtt);
+                    total.record(rtt);
+                }
+                next += period;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else {
+                    // a probe stuck in the queue for longer than the period is not made up for
+                    next = System.nanoTime();
+                }
+            }
+        } catch (IOException e) {
+            if (!stop) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void stop() {
+        stop = true;
+    }
+
+    /**
+     * Prints the round trip times of the interval that just ended and starts a new one, called by the
+     * interval reporter right after the interval's throughput
+     */
+    void report(String label, long from, long to) {
+        LatencyHistogram h;
+        synchronized (this) {
+            h = interval;
+            interval = new LatencyHistogram();
+        }
+        if (Iperfer.json != null) {
+            Map<String, Object> entry = h.toJson();
+            entry.put("start_ns", from);
+            entry.put("end_ns", to);
+            Iperfer.json.append(new String[] { "intervals" }, "probe", entry);
+            return;
+        }
+        if (h.getCount() == 0) {
+            System.out.printf("[%s] probe none returned\n", label);
+            return;
+        }
+        System.out.printf("[%s] probe n=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f us\n", label, h.getCount(),
+                h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3);
+    }
+
+    /**
+     * Prints the idle and loaded round trip times and the queueing delay the load added at the median and p99
+     */
+    synchronized void print() {
+        idle.print("probe idle", "probes");
+        total.print("probe loaded", "probes");
+        long base = idle.getPercentile(50);
+        long p50 = Math.max(0, total.getPercentile(50) - base);
+        long p99 = Math.max(0, total.getPercentile(99) - base);
+        if (Iperfer.json != null) {
+            Map<String, Object> delay = new LinkedHashMap<>();
+            delay.put("p50_ns", p50);
+            delay.put("p99_ns", p99);
+            Iperfer.json.put("queueing_delay", delay);
+            return;
+        }
+        System.out.printf("queueing delay p50=%.1f p99=%.1f us\n", p50 / 1e3, p99 / 1e3);
+    }
+
+    /**
+     * Server side: echoes everything the probe sends until it closes the connection
+     */
+    static void echo(Iperfer.Connection conn) {
+        byte[] buffer = new byte[SIZE];
+        try {
+            InputStream in = conn.in();
+            OutputStream out = conn.out();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
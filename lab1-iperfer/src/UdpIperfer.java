@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UDP throughput test
+ * - every datagram starts with an 8 byte sequence number and the 8 byte System.nanoTime it was sent at
+ * - the client paces datagrams to the requested bandwidth with a Pacer and marks the end of the test with FIN datagrams
+ *   whose sequence number is -1 - (number of datagrams sent)
+ * - the server reports throughput, loss, RFC 3550 interarrival jitter and out-of-order datagrams
+ */
+public class UdpIperfer {
+    static final long DEFAULT_BANDWIDTH = 1000000L;
+    static final int HEADER_SIZE = 16;
+    static final int MAX_DATAGRAM_SIZE = 65507;
+    // FIN datagrams are repeated because any one of them may be lost
+    private static final int FIN_COUNT = 10;
+    // the server gives up on a client that has gone quiet without a FIN after this long
+    private static final long IDLE_TIMEOUT_MS = 2000;
+
+    /**
+     * Client Functionality
+     * - send length byte datagrams to the server at bandwidth bits/sec until time ends
+     * - every datagram is paid for to the pacer before it is sent, so after a late datagram the following
+     *   ones are sent back to back until the stream is back on schedule
+     * - print a summary containing total bytes sent, the achieved rate and the datagram count
+     */
+    public static void client(Iperfer.Options opts) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(opts.length);
+        Pacer pacer = Iperfer.newPacer(opts);
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(new InetSocketAddress(opts.hostname, opts.port));
+
+            long seq = 0;
+            long totalBytesSent = 0;
+            long startTime = System.nanoTime();
+            long endTime = startTime + (long) (opts.time * 1e9);
+            while (System.nanoTime() < endTime) {
+                pacer.acquire(opts.length);
+                buffer.clear();
+                buffer.putLong(0, seq);
+                buffer.putLong(8, System.nanoTime());
+                totalBytesSent += channel.write(buffer);
+                seq++;
+            }
+            long duration = System.nanoTime() - startTime;
+
+            try {
+                for (int i = 0; i < FIN_COUNT; i++) {
+                    buffer.clear();
+                    buffer.putLong(0, -1 - seq);
+                    buffer.putLong(8, System.nanoTime());
+                    channel.write(buffer);
+                    LockSupport.parkNanos(1000000);
+                }
+            } catch (PortUnreachableException e) {
+                // the server got an earlier FIN and has already closed its socket
+            }
+
+            History.metric("sent_bits_per_second", duration <= 0 ? 0 : totalBytesSent * 8e9 / duration);
+            if (Iperfer.json != null) {
+                Map<String, Object> sent = JsonReport.transfer(totalBytesSent, duration);
+                sent.put("datagrams", seq);
+                Iperfer.json.put(new String[] { "end" }, "sent", sent);
+            } else {
+                Iperfer.printSummary(null, "sent", totalBytesSent, duration);
+                System.out.println("datagrams=" + seq);
+            }
+            Pacer.printAccuracy(opts.bandwidth, totalBytesSent, duration);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Server Functionality
+     * - wait for the first datagram and then only accept datagrams from that client
+     * - all reads go into one direct buffer and the statistics are plain longs, so the receive loop
+     *   allocates nothing and does not cause loss itself
+     * - stop after a FIN datagram, or after the client has been silent for IDLE_TIMEOUT_MS
+     * - print a summary containing the bytes received after the first datagram, whose arrival starts the
+     *   clock, the rate over them, loss, jitter and out-of-order count
+     */
+    public static void server(Iperfer.Options opts) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.bind(new InetSocketAddress(opts.port));
+            SocketAddress client = channel.receive(buffer);
+            channel.connect(client);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            long firstArrival = System.nanoTime();
+            long lastArrival = firstArrival;
+            long measuredBytes = 0;
+            long received = 0;
+            long outOfOrder = 0;
+            long nextSeq = 0;
+            long expected = -1;
+            // RFC 3550 section 6.4.1, kept in nanoseconds
+            double jitter = 0;
+            long lastTransit = 0;
+
+            int read = buffer.position();
+            buffer.flip();
+            while (true) {
+                if (read >= HEADER_SIZE) {
+                    long now = System.nanoTime();
+                    long seq = buffer.getLong(0);
+                    long sentTime = buffer.getLong(8);
+                    if (seq < 0) {
+                        expected = -1 - seq;
+                        break;
+                    }
+
+                    lastArrival = now;
+                    // the first datagram starts the clock, so its own bytes arrived before the measured time
+                    if (received > 0) {
+                        measuredBytes += read;
+                    }
+                    received++;
+                    if (seq < nextSeq) {
+                        outOfOrder++;
+                    } else {
+                        nextSeq = seq + 1;
+                    }
+
+                    long transit = now - sentTime;
+                    if (received > 1) {
+                        long d = Math.abs(transit - lastTransit);
+                        jitter += (d - jitter) / 16.0;
+                    }
+                    lastTransit = transit;
+                }
+
+                buffer.clear();
+                read = channel.read(buffer);
+                if (read == 0) {
+                    if (selector.select(IDLE_TIMEOUT_MS) == 0) {
+                        break;
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+
+            if (expected < 0) {
+                // the FIN never arrived, fall back to the highest sequence number seen
+                expected = nextSeq;
+            }
+            long lost = Math.max(0, expected - received);
+            double lossPercent = expected == 0 ? 0 : lost * 100.0 / expected;
+            long duration = lastArrival - firstArrival;
+            History.metric("received_bits_per_second", duration <= 0 ? 0 : measuredBytes * 8e9 / duration);
+            History.metric("jitter_ns", jitter);
+            History.metric("loss_percent", lossPercent);
+
+            if (Iperfer.json != null) {
+                Map<String, Object> stats = JsonReport.transfer(measuredBytes, duration);
+                stats.put("datagrams", received);
+                stats.put("expected", expected);
+                stats.put("lost", lost);
+                stats.put("jitter_ns", jitter);
+                stats.put("out_of_order", outOfOrder);
+                Iperfer.json.put(new String[] { "end" }, "received", stats);
+                return;
+            }
+            Iperfer.printSummary(null, "received", measuredBytes, duration);
+            System.out.printf("lost=%d/%d (%.3f%%) jitter=%.3f ms out-of-order=%d\n",
+                    lost, expected, lossPercent, jitter / 1e6, outOfOrder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
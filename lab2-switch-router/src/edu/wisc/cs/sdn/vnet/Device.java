@@ -110,5 +110,35 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send an Ethernet frame out a specific interface as raw bytes, e.g. a 
+	 * received frame whose headers were patched in place.
+	 * @param packet the frame
+	 * @param iface interface on which to send the packet
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(RawPacket packet, Iface iface)
+	{ return this.vnsComm.sendPacket(packet, iface.getName()); }
+	
+	/**
+	 * Handle a received Ethernet frame as raw bytes, without parsing it. 
+	 * Called for every received packet before handlePacket, which is only 
+	 * called if this returns false; a device that returns false must leave 
+	 * the frame unchanged. The frame is only valid until this returns.
+	 * @param packet the frame that was received
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet was handled, false to have it parsed and 
+	 *         passed to handlePacket
+	 */
+	public boolean handleRawPacket(RawPacket packet, Iface inIface)
+	{ return false; }
+	
+	/**
+	 * Handle a received Ethernet packet. With several workers (-w) this and 
+	 * handleRawPacket run on several threads at once, one per flow, so any 
+	 * state they share must be safe for concurrent use.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 */
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -9,6 +9,9 @@ public class Main
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	// the reader handles packets itself unless -w asks for workers, since the 
+	// tables of some devices are not safe to share between threads
+	private static final int DEFAULT_WORKERS = 0;
 	
 	public static void main(String[] args)
 	{
@@ -17,7 +20,9 @@ public class Main
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		long maxLogSize = 0;
 		short port = DEFAULT_PORT;
+		int workers = DEFAULT_WORKERS;
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -38,13 +43,17 @@ public class Main
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
+			else if (arg.equals("-L"))
+			{ maxLogSize = Long.parseLong(args[++i]) * 1024 * 1024; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
 		}
 		
-		if (null == host)
+		if (null == host || workers < 0)
 		{
 			usage();
 			return;
@@ -54,7 +63,7 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, maxLogSize);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -94,9 +103,24 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Hand received packets to worker threads, unless they should be 
+		// handled on this thread as they are read
+		PacketPipeline pipeline = null;
+		if (workers > 0)
+		{
+			pipeline = new PacketPipeline(vnsComm, workers);
+			vnsComm.setPipeline(pipeline);
+		}
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
+		if (pipeline != null)
+		{
+			pipeline.close();
+			pipeline.printStats();
+		}
+		vnsComm.printStats();
 		
 		// Shutdown the router
 		dev.destroy();
@@ -107,7 +131,9 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
-		System.out.println(String.format("  defaults server=%s port=%d", 
-				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("     [-L max_log_MB (rotate the log file at this size)]");
+		System.out.println("     [-w workers (0 handles packets on the reader thread)]");
+		System.out.println(String.format("  defaults server=%s port=%d workers=%d", 
+				DEFAULT_SERVER, DEFAULT_PORT, DEFAULT_WORKERS));
 	}
 }
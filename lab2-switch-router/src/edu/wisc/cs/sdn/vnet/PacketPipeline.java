@@ -0,0 +1,228 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Hands the packets read from the VNS server to worker threads, so a slow
+ * handlePacket (an ARP miss, a RIP update) holds up only the packets of its
+ * own worker and the reader keeps reading.
+ * Each worker has its own ring of packet commands, filled by the reader and
+ * emptied by the worker without locks. Packets are assigned to workers by a
+ * hash of their addresses (IPv4 source and destination, otherwise source
+ * and destination MAC), so the packets of a flow are handled in the order
+ * they arrived. When a worker's ring is full the reader waits for it, which
+ * pushes back on the server instead of dropping packets.
+ */
+public class PacketPipeline
+{
+	/** Packets each worker's ring holds */
+	public static final int QUEUE_SIZE = 1024;
+
+	/** Smallest slot allocated in a ring; slots grow to the largest
+	 *  command they have held and are reused from then on */
+	private static final int MIN_SLOT_SIZE = 2048;
+
+	/** How long the reader sleeps while a worker's ring is full */
+	private static final long FULL_WAIT_NS = 50 * 1000;
+
+	private static final short ETHERTYPE_IPV4 = 0x0800;
+	private static final short ETHERTYPE_VLAN = (short)0x8100;
+
+	/** Workers, each with its ring and thread */
+	private Worker[] workers;
+	private Thread[] threads;
+
+	/** Set once the reader is done; workers finish their rings and exit */
+	private volatile boolean closed;
+
+	/**
+	 * Creates the pipeline and starts its workers.
+	 * @param vnsComm handles the packet commands the workers take
+	 * @param count number of workers
+	 */
+	public PacketPipeline(VNSComm vnsComm, int count)
+	{
+		this.workers = new Worker[count];
+		this.threads = new Thread[count];
+		for (int i = 0; i < count; i++)
+		{
+			this.workers[i] = new Worker(vnsComm);
+			this.threads[i] = new Thread(this.workers[i], "vnet-worker-" + i);
+			this.workers[i].thread = this.threads[i];
+		}
+		for (Thread thread : this.threads)
+		{ thread.start(); }
+	}
+
+	/**
+	 * Queue a packet command for the worker of its flow; called by the
+	 * reader only. The command is copied, so the caller may reuse the array.
+	 * @param command the packet command as read from the server
+	 * @param len length of the command
+	 */
+	public void submit(byte[] command, int len)
+	{
+		Worker worker = this.workers[
+				(flowHash(command, len) & 0x7fffffff) % this.workers.length];
+
+		long head = worker.head;
+		while (head - worker.tail >= QUEUE_SIZE)
+		{
+			worker.fullWaits++;
+			LockSupport.parkNanos(FULL_WAIT_NS);
+		}
+
+		int slot = (int)(head % QUEUE_SIZE);
+		if (null == worker.slots[slot] || worker.slots[slot].length < len)
+		{ worker.slots[slot] = new byte[Math.max(len, MIN_SLOT_SIZE)]; }
+		System.arraycopy(command, 0, worker.slots[slot], 0, len);
+		worker.lengths[slot] = len;
+		worker.head = head + 1;
+
+		long depth = head + 1 - worker.tail;
+		worker.submitted++;
+		worker.depthSum += depth;
+		worker.maxDepth = Math.max(worker.maxDepth, depth);
+
+		if (worker.sleeping)
+		{ LockSupport.unpark(worker.thread); }
+	}
+
+	/**
+	 * Hash of the addresses of the frame in a packet command; the same for
+	 * both directions of a flow.
+	 */
+	private static int flowHash(byte[] command, int len)
+	{
+		int eth = CommandPacket.HEADER_SIZE;
+		int hash = 0;
+		if (len < eth + 14)
+		{ return hash; }
+
+		int type = eth + 12;
+		if (getShort(command, type) == ETHERTYPE_VLAN && len >= type + 6)
+		{ type += 4; }
+		int ip = type + 2;
+		if (getShort(command, type) == ETHERTYPE_IPV4 && len >= ip + 20)
+		{ hash = getInt(command, ip + 12) ^ getInt(command, ip + 16); }
+		else
+		{
+			// MAC addresses: the first four and the last two bytes of each
+			hash = getInt(command, eth) ^ getInt(command, eth + 6)
+					^ ((getShort(command, eth + 4) ^ getShort(command, eth + 10)) << 16);
+		}
+
+		// Spread the address bits over the whole hash (MurmurHash3's finalizer)
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static short getShort(byte[] b, int off)
+	{ return (short)(((b[off] & 0xff) << 8) | (b[off + 1] & 0xff)); }
+
+	private static int getInt(byte[] b, int off)
+	{ return (getShort(b, off) << 16) | (getShort(b, off + 2) & 0xffff); }
+
+	/**
+	 * Wait for the workers to handle every packet queued so far and stop them.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		for (Thread thread : this.threads)
+		{
+			LockSupport.unpark(thread);
+			try
+			{ thread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+	}
+
+	/**
+	 * Print the packets each worker handled and how deep its queue got.
+	 */
+	public void printStats()
+	{
+		System.out.println(String.format("Pipeline: %d workers, queues of %d",
+				this.workers.length, QUEUE_SIZE));
+		for (int i = 0; i < this.workers.length; i++)
+		{
+			Worker w = this.workers[i];
+			System.out.println(String.format(
+					"  worker %d: packets %d, queue depth avg %.1f max %d, reader waited on full queue %d times",
+					i, w.submitted,
+					0 == w.submitted ? 0.0 : (double)w.depthSum / w.submitted,
+					w.maxDepth, w.fullWaits));
+		}
+	}
+
+	/**
+	 * One worker and its ring; head and the statistics are written by the
+	 * reader only, tail by the worker only.
+	 */
+	private class Worker implements Runnable
+	{
+		private VNSComm vnsComm;
+		private Thread thread;
+
+		private byte[][] slots;
+		private int[] lengths;
+
+		/** Next slot the reader fills and next slot the worker handles */
+		private volatile long head;
+		private volatile long tail;
+
+		/** Set while the worker is parked waiting for packets */
+		private volatile boolean sleeping;
+
+		/** Packets queued, sum and maximum of the queue depth seen right
+		 *  after queueing one, and waits for a full queue */
+		private long submitted;
+		private long depthSum;
+		private long maxDepth;
+		private long fullWaits;
+
+		Worker(VNSComm vnsComm)
+		{
+			this.vnsComm = vnsComm;
+			this.slots = new byte[QUEUE_SIZE][];
+			this.lengths = new int[QUEUE_SIZE];
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				long tail = this.tail;
+				if (tail == this.head)
+				{
+					if (closed)
+					{ return; }
+					// Send what the packets handled so far produced
+					this.vnsComm.flush();
+					// Recheck after announcing the sleep, so a packet queued
+					// in between is not missed
+					this.sleeping = true;
+					if (tail == this.head && !closed)
+					{ LockSupport.park(this); }
+					this.sleeping = false;
+					continue;
+				}
+
+				int slot = (int)(tail % QUEUE_SIZE);
+				try
+				{ this.vnsComm.handlePacketCommand(this.slots[slot], this.lengths[slot]); }
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+				this.tail = tail + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * View over the bytes of an Ethernet frame as it was received, for devices
+ * that only read or patch a few header fields (MAC addresses, TTL, IPv4
+ * checksum) and send the frame on without parsing it into an Ethernet
+ * object and serializing it back.
+ * A received view is backed by the receive buffer and only valid until the
+ * device's handleRawPacket returns; copy it to keep it longer.
+ */
+public class RawPacket
+{
+	private static final int ETHER_HEADER_SIZE = 14;
+	private static final int IPV4_MIN_HEADER_SIZE = 20;
+
+	/** Offsets of fields in the Ethernet and IPv4 headers */
+	private static final int DST_MAC = 0;
+	private static final int SRC_MAC = 6;
+	private static final int ETHER_TYPE = 12;
+	private static final int IP_TTL = 8;
+	private static final int IP_PROTOCOL = 9;
+	private static final int IP_CHECKSUM = 10;
+	private static final int IP_SRC = 12;
+	private static final int IP_DST = 16;
+
+	private byte[] data;
+	private int offset;
+	private int length;
+
+	/**
+	 * @param data array holding the frame
+	 * @param offset start of the frame in the array
+	 * @param length length of the frame
+	 */
+	public RawPacket(byte[] data, int offset, int length)
+	{
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/** @return array holding the frame */
+	public byte[] getData()
+	{ return this.data; }
+
+	/** @return start of the frame in the array */
+	public int getOffset()
+	{ return this.offset; }
+
+	/** @return length of the frame */
+	public int getLength()
+	{ return this.length; }
+
+	/**
+	 * @return a copy of the frame backed by an array of its own
+	 */
+	public RawPacket copy()
+	{
+		return new RawPacket(Arrays.copyOfRange(this.data, this.offset,
+				this.offset + this.length), 0, this.length);
+	}
+
+	/**
+	 * @return the frame parsed into an Ethernet packet
+	 */
+	public Ethernet toEthernet()
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(this.data, this.offset, this.length);
+		return etherPacket;
+	}
+
+	public short getEtherType()
+	{ return this.getShort(ETHER_TYPE); }
+
+	public MACAddress getDestinationMAC()
+	{ return this.getMAC(DST_MAC); }
+
+	public MACAddress getSourceMAC()
+	{ return this.getMAC(SRC_MAC); }
+
+	public void setDestinationMAC(MACAddress mac)
+	{ this.setMAC(DST_MAC, mac); }
+
+	public void setSourceMAC(MACAddress mac)
+	{ this.setMAC(SRC_MAC, mac); }
+
+	private MACAddress getMAC(int field)
+	{
+		return new MACAddress(Arrays.copyOfRange(this.data,
+				this.offset + field, this.offset + field + 6));
+	}
+
+	private void setMAC(int field, MACAddress mac)
+	{
+		System.arraycopy(mac.toBytes(), 0, this.data, this.offset + field, 6);
+	}
+
+	/**
+	 * @return true if the frame holds an untagged IPv4 packet whose whole
+	 *         header is in the frame; the IPv4 accessors below may only be
+	 *         used if it does
+	 */
+	public boolean isIPv4()
+	{
+		if (this.length < ETHER_HEADER_SIZE + IPV4_MIN_HEADER_SIZE
+				|| this.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return false; }
+		int versionAndLength = this.data[this.offset + ETHER_HEADER_SIZE] & 0xff;
+		int headerLength = this.getIpHeaderLength();
+		return (versionAndLength >> 4) == 4
+				&& headerLength >= IPV4_MIN_HEADER_SIZE
+				&& ETHER_HEADER_SIZE + headerLength <= this.length;
+	}
+
+	/** @return length of the IPv4 header in bytes */
+	public int getIpHeaderLength()
+	{ return (this.data[this.offset + ETHER_HEADER_SIZE] & 0x0f) * 4; }
+
+	public byte getTtl()
+	{ return this.data[this.offset + ETHER_HEADER_SIZE + IP_TTL]; }
+
+	public byte getProtocol()
+	{ return this.data[this.offset + ETHER_HEADER_SIZE + IP_PROTOCOL]; }
+
+	public int getSourceAddress()
+	{ return this.getInt(ETHER_HEADER_SIZE + IP_SRC); }
+
+	public int getDestinationAddress()
+	{ return this.getInt(ETHER_HEADER_SIZE + IP_DST); }
+
+	/**
+	 * @return true if the IPv4 header checksum is correct
+	 */
+	public boolean isIpChecksumValid()
+	{
+		int sum = 0;
+		int headerLength = this.getIpHeaderLength();
+		for (int i = 0; i < headerLength; i += 2)
+		{ sum += this.getShort(ETHER_HEADER_SIZE + i) & 0xffff; }
+		while ((sum >> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >> 16); }
+		return 0xffff == sum;
+	}
+
+	/**
+	 * Decrement the IPv4 TTL and update the header checksum for the change
+	 * alone (RFC 1624), rather than summing the whole header again.
+	 */
+	public void decrementTtl()
+	{
+		int ttlField = ETHER_HEADER_SIZE + IP_TTL;
+		int oldWord = this.getShort(ttlField) & 0xffff;
+		this.data[this.offset + ttlField]--;
+		int newWord = this.getShort(ttlField) & 0xffff;
+
+		// HC' = ~(~HC + ~m + m')
+		int checksumField = ETHER_HEADER_SIZE + IP_CHECKSUM;
+		int sum = (~this.getShort(checksumField) & 0xffff)
+				+ (~oldWord & 0xffff) + newWord;
+		while ((sum >> 16) != 0)
+		{ sum = (sum & 0xffff) + (sum >> 16); }
+		this.setShort(checksumField, (short)~sum);
+	}
+
+	private short getShort(int field)
+	{
+		int i = this.offset + field;
+		return (short)(((this.data[i] & 0xff) << 8) | (this.data[i + 1] & 0xff));
+	}
+
+	private void setShort(int field, short value)
+	{
+		int i = this.offset + field;
+		this.data[i] = (byte)(value >> 8);
+		this.data[i + 1] = (byte)value;
+	}
+
+	private int getInt(int field)
+	{
+		return ((this.getShort(field) & 0xffff) << 16)
+				| (this.getShort(field + 2) & 0xffff);
+	}
+}
@@ -3,6 +3,7 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.RawPacket;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -71,6 +72,42 @@ public class Router extends Device {
 		System.out.println("----------------------------------");
 	}
 
+	/**
+	 * Handle a frame without parsing it: check the checksum, decrement the TTL
+	 * (updating the checksum for just that change) and rewrite the MACs in the
+	 * received bytes, then send them back out; same checks as handlePacket.
+	 * Frames that are not plain IPv4 (a VLAN tag, for one), fail the checksum
+	 * or would expire are left to handlePacket, as is everything when
+	 * debugging so the packet can be printed.
+	 * @param packet the frame that was received
+	 * @param inIface the interface on which the packet was received
+	 * @return true if the packet was forwarded or dropped here
+	 */
+	public boolean handleRawPacket(RawPacket packet, Iface inIface) {
+		if (dbg) return false;
+
+		// anything but a valid IPv4 packet whose TTL does not run out takes the parsed path
+		if (!packet.isIPv4() || !packet.isIpChecksumValid() || packet.getTtl() == 1) return false;
+
+		// packets for one of the interfaces are dropped
+		int destIP = packet.getDestinationAddress();
+		for (Iface iface : interfaces.values()) {
+			if (iface.getIpAddress() == destIP) return true;
+		}
+
+		RouteEntry re = routeTable.lookup(destIP);
+		if (re == null) return true;
+		int nextIP = re.getGatewayAddress() != 0 ? re.getGatewayAddress() : destIP;
+		ArpEntry ae = arpCache.lookup(nextIP);
+		if (ae == null) return true;
+
+		packet.decrementTtl();
+		packet.setSourceMAC(re.getInterface().getMacAddress());
+		packet.setDestinationMAC(ae.getMac());
+		sendPacket(packet, re.getInterface());
+		return true;
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
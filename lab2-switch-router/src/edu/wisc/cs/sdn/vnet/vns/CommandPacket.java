@@ -4,11 +4,20 @@ import java.nio.ByteBuffer;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+import edu.wisc.cs.sdn.vnet.RawPacket;
+
 public class CommandPacket extends Command
 {
+	/** Bytes ahead of the frame: the command header and the interface name */
+	public static final int HEADER_SIZE = 8 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
+	/** The frame as received, backed by the command's bytes; null for a 
+	 *  command built from an Ethernet packet */
+	protected RawPacket rawPacket;
+	
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
 	
@@ -20,13 +29,43 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-        this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		// Keep the frame as it is; it is only parsed if asked for
+		this.rawPacket = new RawPacket(buf.array(), buf.position(),
+				buf.limit() - buf.position());
 		
 		return this;
 	}
 	
+	/**
+	 * @return the frame parsed into an Ethernet packet, parsed on first use
+	 */
+	protected Ethernet getEtherPacket()
+	{
+		if (null == this.etherPacket)
+		{ this.etherPacket = this.rawPacket.toEthernet(); }
+		return this.etherPacket;
+	}
+	
+	/**
+	 * Write a packet command's header into the HEADER_SIZE bytes before a 
+	 * frame, so the command can be sent straight from the frame's array.
+	 * @param data array holding the frame, with room for the header in front
+	 * @param offset start of the frame; at least HEADER_SIZE
+	 * @param length length of the frame
+	 * @param ifaceName interface to send the frame on
+	 */
+	protected static void putHeader(byte[] data, int offset, int length, 
+			String ifaceName)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, offset - HEADER_SIZE, HEADER_SIZE);
+		bb.putInt(HEADER_SIZE + length);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name, 0, Math.min(name.length, 16));
+		for (int i = name.length; i < 16; i++)
+		{ bb.put((byte)0); }
+	}
+	
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
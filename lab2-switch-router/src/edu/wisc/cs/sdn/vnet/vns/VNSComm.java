@@ -1,30 +1,64 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketPipeline;
+import edu.wisc.cs.sdn.vnet.RawPacket;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Largest command accepted from the server: a 64 KB (jumbo) frame plus 
+	 *  the packet command's header */
+	public static final int MAX_COMMAND_SIZE = 65536 + CommandPacket.HEADER_SIZE;
+	
+	/** Size of the read buffer; one read picks up as many of the commands 
+	 *  queued on the connection as fit */
+	private static final int READ_BUFFER_SIZE = 256 * 1024;
+	
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Batches the packets sent to the server */
+	private CommandWriter writer;
+	
+	/** Worker threads that handle received packets; null if the reader 
+	 *  handles them itself */
+	private PacketPipeline pipeline;
+	
+	/** Bytes read from the server but not handled yet; kept in read mode 
+	 *  (position at the next command) between calls */
+	private ByteBuffer readBuffer;
+	
+	/** The command being handled, copied out of the read buffer; reused for 
+	 *  every command since handling it copies out whatever it keeps */
+	private byte[] command;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.readBuffer.flip();
+		this.command = new byte[MAX_COMMAND_SIZE];
 	}
 	
+	/**
+	 * @param pipeline worker threads to hand received packets to; null to 
+	 *        handle them on the thread reading from the server
+	 */
+	public void setPipeline(PacketPipeline pipeline)
+	{ this.pipeline = pipeline; }
+	
 	public boolean connectToServer(short port, String server)
 	{
 		// Grab server address from name
@@ -39,31 +73,55 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			// Packets are batched by the writer, Nagle would only delay them
+			channel.socket().setTcpNoDelay(true);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
+		this.writer = new CommandWriter(channel);
 		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		return this.writer.write(buf) && this.writer.flush(); 
+	}
+	
+	/**
+	 * Make sure the read buffer holds at least the given number of bytes,
+	 * reading from the server only if it does not already.
+	 * @param needed number of bytes needed
+	 * @return true if the bytes are there, false if the connection closed
+	 *         or failed first
+	 */
+	private boolean fill(int needed)
+	{
+		while (this.readBuffer.remaining() < needed)
 		{
-			e.printStackTrace();
-			return false;
+			// Send whatever handling the commands read so far produced 
+			// before waiting for more
+			this.writer.flush();
+			this.readBuffer.compact();
+			try
+			{
+				if (this.channel.read(this.readBuffer) < 0)
+				{ return false; }
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return false;
+			}
+			finally
+			{ this.readBuffer.flip(); }
 		}
-		
-		return true; 
+		return true;
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -108,71 +166,37 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		// Attempt to read the size of the incoming packet; commands the last 
+		// read already picked up are handled without going to the socket
+		if (!this.fill(4))
 		{
-			e.printStackTrace();
+			System.err.println("Error: connection to server closed");
 			return false;
 		}
 		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		int len = this.readBuffer.getInt(this.readBuffer.position());
 		
-		if (len > 10000 || len < 0)
+		if (len > MAX_COMMAND_SIZE || len < 8)
 		{
 			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
+					"Error: comamnd length invalid %d", len));
+			try { channel.close(); } catch (IOException e) { }
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
 		// Read the rest of the command
-		while (bytesRead < len)
+		if (!this.fill(len))
 		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
+			System.err.println("Error: failed reading command body");
+			try { channel.close(); } catch (IOException e2) { }
+			return false;
 		}
 		
+		// Copy the command out of the read buffer
+		this.readBuffer.get(this.command, 0, len);
+		ByteBuffer buf = ByteBuffer.wrap(this.command, 0, len);
+		buf.getInt(); // length, already checked
+		
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
 		if (expectedCmd != 0 && command != expectedCmd)
@@ -190,16 +214,10 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			if (this.pipeline != null)
+			{ this.pipeline.submit(this.command, len); }
+			else
+			{ this.handlePacketCommand(this.command, len); }
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +241,30 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Log a packet command received from the server and pass the packet to 
+	 * the device, as raw bytes if the device handles those, otherwise parsed.
+	 * @param command the packet command
+	 * @param len length of the command
+	 */
+	public void handlePacketCommand(byte[] command, int len)
+	{
+		// Log packet as received, without re-serializing it
+        if (this.device.getLogFile() != null)
+        {
+			this.device.getLogFile().dump(command, CommandPacket.HEADER_SIZE, 
+					len - CommandPacket.HEADER_SIZE);
+		}
+		
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.deserialize(ByteBuffer.wrap(command, 0, len));
+		Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
+		
+		// Pass to device, student's code should take over here
+		if (!this.device.handleRawPacket(cmdPkt.rawPacket, inIface))
+		{ this.device.handlePacket(cmdPkt.getEtherPacket(), inIface); }
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -258,19 +300,57 @@ public class VNSComm
 		
 		// Log packet
         if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
-		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+        {
+			this.device.getLogFile().dump(buf, CommandPacket.HEADER_SIZE, 
+					buf.length - CommandPacket.HEADER_SIZE);
 		}
-		catch(IOException e)
+		
+		return this.writer.write(buf);
+	}
+	
+	/**
+	 * Send a frame as raw bytes. If the frame has room in front of it, as 
+	 * a received frame does, the command header is written there and the 
+	 * command goes out straight from the frame's array.
+	 * @param packet the frame
+	 * @param ifaceName interface to send the frame on
+	 * @return true if the packet was sent, otherwise false
+	 */
+	public boolean sendPacket(RawPacket packet, String ifaceName)
+	{
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int length = packet.getLength();
+		if (offset < CommandPacket.HEADER_SIZE)
 		{
-			System.err.println("Error writing packet");
-			return false;
+			data = new byte[CommandPacket.HEADER_SIZE + length];
+			System.arraycopy(packet.getData(), offset, data, 
+					CommandPacket.HEADER_SIZE, length);
+			offset = CommandPacket.HEADER_SIZE;
 		}
-		return true;
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(data, offset, length); }
+		
+		CommandPacket.putHeader(data, offset, length, ifaceName);
+		return this.writer.write(data, offset - CommandPacket.HEADER_SIZE, 
+				CommandPacket.HEADER_SIZE + length);
+	}
+	
+	/**
+	 * Send any packets still batched.
+	 * @return false if sending failed, otherwise true
+	 */
+	public boolean flush()
+	{ return this.writer.flush(); }
+	
+	/**
+	 * Send any packets still batched and print how well sends were batched.
+	 */
+	public void printStats()
+	{
+		this.writer.flush();
+		this.writer.printStats();
 	}
 }
@@ -1,107 +1,331 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 
 import net.floodlightcontroller.packet.Ethernet;
 
-public class DumpFile
+/**
+ * PCAP dump file written in the background.
+ * Threads that dump a packet only copy it, with its timestamp, into a ring
+ * of capture buffers; a writer thread writes each buffer out in one write
+ * once it is full or has waited FLUSH_INTERVAL_NS. When every buffer is
+ * waiting to be written the packet is dropped and counted instead of
+ * holding up forwarding. Timestamps have nanosecond resolution, and a file
+ * that reaches its size limit is renamed to name.1, name.2, ... and a new
+ * file is started.
+ */
+public class DumpFile implements Runnable
 {
-	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
+	private static final int HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	/** Capture buffers in the ring and the size of each */
+	private static final int BUFFERS = 8;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** Longest a captured packet waits before it is written */
+	private static final long FLUSH_INTERVAL_NS = 100 * 1000000L;
+
+	/** File name, null when writing to standard output */
+	private String filename;
 	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
-	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
-	}
-	
-	private DumpFile()
+	private WritableByteChannel out;
+
+	/** Size at which the file is rotated, 0 for no limit; bytes in the
+	 *  current file and files rotated so far */
+	private long maxFileSize;
+	private long fileSize;
+	private int rotations;
+
+	/** Buffer being filled, buffers waiting to be written and free buffers;
+	 *  all guarded by this */
+	private ByteBuffer filling;
+	private ArrayDeque<ByteBuffer> full;
+	private ArrayDeque<ByteBuffer> free;
+
+	/** When the first packet went into the buffer being filled, by nanoTime */
+	private long fillingSince;
+
+	/** Packets captured and packets dropped because every buffer was full */
+	private long captured;
+	private long dropped;
+
+	/** Wall clock time in ns at the nanoTime origin, for the timestamps */
+	private long epochOffset;
+
+	private Thread writer;
+	private volatile boolean closed;
+
+	private DumpFile(String filename, long maxFileSize)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.filename = filename;
+		this.maxFileSize = maxFileSize;
+		this.full = new ArrayDeque<ByteBuffer>();
+		this.free = new ArrayDeque<ByteBuffer>();
+		for (int i = 1; i < BUFFERS; i++)
+		{ this.free.add(ByteBuffer.allocate(BUFFER_SIZE)); }
+		this.filling = ByteBuffer.allocate(BUFFER_SIZE);
+		this.epochOffset = System.currentTimeMillis() * 1000000L
+				- System.nanoTime();
 	}
-	
+
 	public static DumpFile open(String filename)
+	{ return open(filename, 0); }
+
+	/**
+	 * Open a dump file and start its writer.
+	 * @param filename name of the file, "-" for standard output
+	 * @param maxFileSize size in bytes at which the file is rotated, 0 for
+	 *        no limit (standard output is never rotated)
+	 * @return the dump file, null if it could not be opened
+	 */
+	public static DumpFile open(String filename, long maxFileSize)
 	{
-		DumpFile dumpFile = null;
+		DumpFile dumpFile;
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{
+			dumpFile = new DumpFile(null, 0);
+			dumpFile.out = Channels.newChannel(System.out);
+		}
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
-			{
-				System.err.println("Cannot open " + filename);
-				return null;
-			}
+			dumpFile = new DumpFile(filename, maxFileSize);
+			if (!dumpFile.openFile())
+			{ return null; }
 		}
-		
+
 		if (!dumpFile.writeHeader())
 		{ return null; }
+
+		dumpFile.writer = new Thread(dumpFile, "pcap-writer");
+		dumpFile.writer.setDaemon(true);
+		dumpFile.writer.start();
 		return dumpFile;
 	}
-	
+
+	private boolean openFile()
+	{
+		try
+		{
+			this.fileStream = new FileOutputStream(this.filename);
+			this.out = this.fileStream.getChannel();
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open " + this.filename);
+			return false;
+		}
+	}
+
 	private boolean writeHeader()
-	{        
-		try 
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(TCPDUMP_MAGIC_NSEC);
+		header.putShort(PCAP_VERSION_MAJOR);
+		header.putShort(PCAP_VERSION_MINOR);
+		header.putInt(THIS_ZONE);
+		header.putInt(SIG_FIGS);
+		header.putInt(SNAP_LEN);
+		header.putInt(LINKTYPE_ETHERNET);
+		header.flip();
+		try
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-	        this.outStream.flush();
-	        return true;
+			this.write(header);
+			this.fileSize = HEADER_SIZE;
+			return true;
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
 			return false;
 		}
-
 	}
-	
+
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
-		try
+		this.dump(buf, 0, buf.length);
+	}
+
+	/**
+	 * Capture a frame as raw bytes; the bytes are copied, so the caller may
+	 * reuse the array.
+	 * @param data array holding the frame
+	 * @param offset start of the frame in the array
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] data, int offset, int length)
+	{
+		long now = System.nanoTime();
+		long timestamp = this.epochOffset + now;
+		int caplen = Math.min(length, SNAP_LEN);
+		int size = RECORD_HEADER_SIZE + caplen;
+
+		synchronized (this)
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			if (this.closed)
+			{ return; }
+			if (this.filling.remaining() < size)
+			{
+				if (this.free.isEmpty())
+				{
+					this.dropped++;
+					return;
+				}
+				this.full.add(this.filling);
+				this.filling = this.free.poll();
+				this.notify();
+			}
+			if (0 == this.filling.position())
+			{
+				// Start the buffer's deadline
+				this.fillingSince = now;
+				this.notify();
+			}
+			this.filling.putInt((int)(timestamp / 1000000000L));
+			this.filling.putInt((int)(timestamp % 1000000000L));
+			this.filling.putInt(caplen);
+			this.filling.putInt(length);
+			this.filling.put(data, offset, caplen);
+			this.captured++;
+		}
+	}
+
+	/**
+	 * Write out full buffers as they come, and the buffer being filled once
+	 * its first packet has waited FLUSH_INTERVAL_NS, until the file is closed.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			ByteBuffer buffer;
+			synchronized (this)
+			{
+				while (null == (buffer = this.nextBuffer()))
+				{
+					if (this.closed && 0 == this.filling.position())
+					{ return; }
+					// Sleep until notified of a full buffer, a first packet or 
+					// closing, or until the buffer being filled is due
+					long wait = 0;
+					if (this.filling.position() > 0)
+					{
+						wait = this.fillingSince + FLUSH_INTERVAL_NS 
+								- System.nanoTime();
+						wait = Math.max(1, wait / 1000000);
+					}
+					try
+					{ this.wait(wait); }
+					catch (InterruptedException e)
+					{ }
+				}
+			}
+
+			buffer.flip();
+			try
+			{
+				if (this.maxFileSize > 0
+						&& this.fileSize + buffer.remaining() > this.maxFileSize
+						&& this.fileSize > HEADER_SIZE)
+				{ this.rotate(); }
+				this.fileSize += buffer.remaining();
+				this.write(buffer);
+			}
+			catch (IOException e)
+			{ e.printStackTrace(); }
+			buffer.clear();
+
+			synchronized (this)
+			{ this.free.add(buffer); }
 		}
-		catch (IOException e)
-		{ e.printStackTrace(); }
 	}
-	
+
+	/**
+	 * Next buffer to write: a full one, or the buffer being filled if it is 
+	 * due or the file is closing and a free buffer can replace it; null if 
+	 * there is nothing to write yet. Called holding this.
+	 */
+	private ByteBuffer nextBuffer()
+	{
+		if (!this.full.isEmpty())
+		{ return this.full.poll(); }
+		if (0 == this.filling.position() || this.free.isEmpty())
+		{ return null; }
+		if (!this.closed 
+				&& System.nanoTime() - this.fillingSince < FLUSH_INTERVAL_NS)
+		{ return null; }
+		ByteBuffer buffer = this.filling;
+		this.filling = this.free.poll();
+		return buffer;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{ this.out.write(buffer); }
+		if (null == this.fileStream)
+		{ System.out.flush(); }
+	}
+
+	/**
+	 * Rename the current file to the next free name.N and start a new one.
+	 */
+	private void rotate() throws IOException
+	{
+		this.fileStream.close();
+		this.rotations++;
+		File current = new File(this.filename);
+		if (!current.renameTo(new File(this.filename + "." + this.rotations)))
+		{ System.err.println("Cannot rotate " + this.filename); }
+		if (!this.openFile() || !this.writeHeader())
+		{ throw new IOException("Cannot reopen " + this.filename); }
+	}
+
+	/**
+	 * Write out everything captured so far, close the file and print how
+	 * many packets were captured and dropped.
+	 */
 	public void close()
 	{
+		synchronized (this)
+		{
+			this.closed = true;
+			this.notify();
+		}
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+
 		try
 		{
-			this.outStream.flush();
 			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			{ this.fileStream.close(); }
 		}
 		catch(IOException e) { }
+
+		// Standard output may be the dump itself
+		String stats = String.format(
+				"Logged %d packets, dropped %d, rotated %d times",
+				this.captured, this.dropped, this.rotations);
+		if (this.fileStream != null)
+		{ System.out.println(stats); }
+		else
+		{ System.err.println(stats); }
 	}
 }
@@ -3,6 +3,7 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.RawPacket;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -25,6 +26,11 @@ import java.util.TimerTask;
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class Router extends Device {	
+	/**
+	 * Multicast address RIP packets are sent to
+	 */
+	private static final int RIP_MULTICAST_ADDRESS = IPv4.toIPv4Address("224.0.0.9");
+
 	/**
 	 * Routing table for the router
 	 */
@@ -36,12 +42,14 @@ public class Router extends Device {
 	private ArpCache arpCache;
 
 	/**
-	 * Packet queues for ARP misses for each unique IP address
+	 * Packet queues for ARP misses for each unique IP address;
+	 * queues are created, added to and removed only while holding the map's lock
 	 */
 	private Map<Integer, List<Ethernet>> packetQueueMap;
 
 	/**
-	 * Map to store RIP entries with their corresponding destination network IP
+	 * Map to store RIP entries with their corresponding destination network IP;
+	 * entries are updated only while holding the map's lock
 	 */
 	private Map<Integer, RipEntry> ripMap;
 
@@ -193,13 +201,15 @@ public class Router extends Device {
 					printRipMap();
 					System.out.println("----");
 				}
-				for (RipEntry e : ripMap.values()) {
-					if (e.creationTime != -1) { // we do not want to remove its interfaces
-						long age = System.currentTimeMillis() - e.creationTime;
-						if (age >= 30000) {
-							ripMap.remove(e.destAddr & e.subnetMask);
-							routeTable.remove(e.destAddr, e.subnetMask);
-							if (dbg) System.out.println("removed old entry:\n" + routeTable.toString() + "----");
+				synchronized (ripMap) {
+					for (RipEntry e : ripMap.values()) {
+						if (e.creationTime != -1) { // we do not want to remove its interfaces
+							long age = System.currentTimeMillis() - e.creationTime;
+							if (age >= 30000) {
+								ripMap.remove(e.destAddr & e.subnetMask);
+								routeTable.remove(e.destAddr, e.subnetMask);
+								if (dbg) System.out.println("removed old entry:\n" + routeTable.toString() + "----");
+							}
 						}
 					}
 				}
@@ -242,17 +252,19 @@ public class Router extends Device {
 				RIPv2 ripv2 = (RIPv2) udp.getPayload();
 
 				List<RIPv2Entry> entries = ripv2.getEntries();
-				for (RIPv2Entry newEntry : entries) {
-					int newEntryNetAddr = newEntry.getAddress() & newEntry.getSubnetMask();
+				// responses from different neighbors may be handled by different workers
+				synchronized (ripMap) {
+					for (RIPv2Entry newEntry : entries) {
+						int newEntryNetAddr = newEntry.getAddress() & newEntry.getSubnetMask();
 
-					if (ripMap.containsKey(newEntryNetAddr)) { // there is an existing route
 						RipEntry localEntry = ripMap.get(newEntryNetAddr);
-
-						if (newEntry.getMetric() + 1 < localEntry.cost) { // better route found
-							updateExistingRoute(newEntry, localEntry, ip, inIface);
+						if (localEntry != null) { // there is an existing route
+							if (newEntry.getMetric() + 1 < localEntry.cost) { // better route found
+								updateExistingRoute(newEntry, localEntry, ip, inIface);
+							}
+						} else { // this is a new route
+							addNewRoute(newEntry, ip, inIface);
 						}
-					} else { // this is a new route
-						addNewRoute(newEntry, ip, inIface);
 					}
 				}
 				break;
@@ -346,6 +358,39 @@ public class Router extends Device {
 		sendPacket(ether, inIface);
 	}
 
+	/**
+	 * Forward a plain IPv4 packet without parsing it: check the checksum,
+	 * decrement the TTL (updating the checksum for just that change) and
+	 * rewrite the MACs in the received bytes, then send them back out.
+	 * Anything else (ARP, RIP, packets for the router, expiring TTLs, missing
+	 * routes or ARP entries) is left to handlePacket, so the frame is only
+	 * changed once it is certain to be forwarded.
+	 * @param packet the frame that was received
+	 * @param inIface the port on which the packet was received
+	 * @return true if the packet was forwarded
+	 */
+	public boolean handleRawPacket(RawPacket packet, Iface inIface) {
+		if (!packet.isIPv4() || !packet.isIpChecksumValid() || packet.getTtl() == 1) return false;
+
+		int destIP = packet.getDestinationAddress();
+		if (destIP == RIP_MULTICAST_ADDRESS) return false;
+		for (Iface iface : interfaces.values()) {
+			if (iface.getIpAddress() == destIP) return false;
+		}
+
+		RouteEntry re = routeTable.lookup(destIP);
+		if (re == null || re.getInterface() == inIface) return false;
+		int nextIP = re.getGatewayAddress() != 0 ? re.getGatewayAddress() : destIP;
+		ArpEntry ae = arpCache.lookup(nextIP);
+		if (ae == null) return false;
+
+		packet.decrementTtl();
+		packet.setSourceMAC(re.getInterface().getMacAddress());
+		packet.setDestinationMAC(ae.getMac());
+		sendPacket(packet, re.getInterface());
+		return true;
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -401,8 +446,12 @@ public class Router extends Device {
 					// add this to the arp cache
 					arpCache.insert(mac, ip);
 		
-					// send all the pending packets in the queue to the newly added arp cache entry
-					List<Ethernet> queue = packetQueueMap.remove(ip);
+					// send all the pending packets in the queue to the newly added arp cache entry;
+					// once removed under the lock no worker can add to the queue any more
+					List<Ethernet> queue;
+					synchronized (packetQueueMap) {
+						queue = packetQueueMap.remove(ip);
+					}
 					if (queue == null) return;
 					for (Ethernet packet : queue) {
 						packet.setDestinationMACAddress(mac.toString());
@@ -483,24 +532,50 @@ public class Router extends Device {
 		if (ipNextHopAddr == 0) ipNextHopAddr = ipDestAddr;
 
 		final int nextIp = ipNextHopAddr;
-		if (packetQueueMap.containsKey(nextIp)) { // there is already an existing queue for that next hop ip destination so we just add the incoming packet to that queue
-			packetQueueMap.get(nextIp).add(etherPacket);
-		} else { // we create a packet queue for that ip
-			packetQueueMap.put(nextIp, new ArrayList<Ethernet>());
-			packetQueueMap.get(nextIp).add(etherPacket);
+		boolean newQueue = false;
+		// misses for the same next hop may be handled by several workers at once, so only one
+		// of them creates the queue and starts the timer
+		synchronized (packetQueueMap) {
+			List<Ethernet> queue = packetQueueMap.get(nextIp);
+			if (queue == null) { // we create a packet queue for that ip
+				queue = new ArrayList<Ethernet>();
+				packetQueueMap.put(nextIp, queue);
+				newQueue = true;
+			}
+			// otherwise there is already an existing queue for that next hop ip destination so we just add the incoming packet to that queue
+			queue.add(etherPacket);
+		}
 
+		if (newQueue) {
 			// we use a timer task (similar functionality to a thread) to send ARP requests to the destination until we get a reply or till 3 requests has been sent
 			// we send a DEST_NET_UNREACHABLE icmp message after sending 3 requests
 			TimerTask task = new TimerTask() {
 				int cnt = 0;
 				public void run() {
-					if (arpCache.lookup(nextIp) != null) {
+					ArpEntry arpEntry = arpCache.lookup(nextIp);
+					if (arpEntry != null) {
+						// send packets queued after the ARP reply was handled
+						List<Ethernet> removedQ;
+						synchronized (packetQueueMap) {
+							removedQ = packetQueueMap.remove(nextIp);
+						}
+						if (removedQ != null) {
+							for (Ethernet ether : removedQ) {
+								ether.setDestinationMACAddress(arpEntry.getMac().toString());
+								sendPacket(ether, outIface);
+							}
+						}
 						this.cancel();
 					} else {
 						if (cnt > 2) {
-							List<Ethernet> removedQ = packetQueueMap.remove(nextIp);
-							for (Ethernet ether : removedQ) {
-								sendICMP(ICMPMessageType.DEST_HOST_UNREACHABLE, ether, inIface);
+							List<Ethernet> removedQ;
+							synchronized (packetQueueMap) {
+								removedQ = packetQueueMap.remove(nextIp);
+							}
+							if (removedQ != null) {
+								for (Ethernet ether : removedQ) {
+									sendICMP(ICMPMessageType.DEST_HOST_UNREACHABLE, ether, inIface);
+								}
 							}
 
 							this.cancel();
@@ -5,6 +5,7 @@ import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.RawPacket;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,14 +18,15 @@ public class Switch extends Device implements Runnable {
 	 */
 	private class PortInfo {
 		/**
-		 * The time the MAC address was entered into the table.
+		 * The time the MAC address was entered into the table;
+		 * volatile because the workers refresh it while the aging thread reads it.
 		 */
-		private long birth;
+		private volatile long birth;
 
 		/**
 		 * Iface of the port that corresponds with the incoming packet.
 		 */
-		private Iface portID;
+		private final Iface portID;
 
 		/**
 		 * Instantiates the age to the current time and portID to the incoming packet.
@@ -66,8 +68,8 @@ public class Switch extends Device implements Runnable {
 					// calculate the age of the entry
 					long age = System.currentTimeMillis() - info.birth;
 
-					// remove entry greater than 15s
-					if (age >= 15000) table.remove(mac);
+					// remove entry greater than 15s (this entry only, not one a worker learnt again meanwhile)
+					if (age >= 15000) table.remove(mac, info);
 				}
 
 				// repeat this every 1s
@@ -106,7 +108,7 @@ public class Switch extends Device implements Runnable {
 		}
 
 		// whenever we receive a packet, we learn its MAC
-		learn(etherPacket, inIface);
+		learn(etherPacket.getSourceMAC(), inIface);
 
 		if (dbg) {
 			System.out.println("learning complete");
@@ -114,7 +116,7 @@ public class Switch extends Device implements Runnable {
 		}
 
 		// we look for the destination MAC in our table
-		Iface outputPort = searchTable(etherPacket);
+		Iface outputPort = searchTable(etherPacket.getSourceMAC(), etherPacket.getDestinationMAC());
 
 		if (dbg) {
 			System.out.println("searching complete");
@@ -131,24 +133,45 @@ public class Switch extends Device implements Runnable {
 		}
 	}
 
+	/**
+	 * Handle a frame without parsing it: the switch only needs its MAC addresses
+	 * and forwards it unchanged, so the received bytes go straight back out;
+	 * debugging uses the parsed path so the packet can be printed.
+	 * @param packet the frame that was received
+	 * @param inIface the interface on which the packet was received
+	 * @return true unless debugging
+	 */
+	public boolean handleRawPacket(RawPacket packet, Iface inIface) {
+		if (dbg) return false;
+
+		MACAddress src = packet.getSourceMAC();
+		learn(src, inIface);
+		Iface outputPort = searchTable(src, packet.getDestinationMAC());
+		if (outputPort != null) {
+			sendPacket(packet, outputPort);
+		} else {
+			for (Iface p : getInterfaces().values()) {
+				if (!p.equals(inIface)) sendPacket(packet, p);
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Adds the source MAC address of the incoming packet along with its port info;
 	 * Stored as an entry in a table using a HashMap.
-	 * @param etherPacket the incoming packet
+	 * @param macAddr the source MAC of the incoming packet
 	 * @param port the port we received the packet from
 	 */
-	private void learn(Ethernet etherPacket, Iface port) {
+	private void learn(MACAddress macAddr, Iface port) {
 		if (dbg) System.out.print("learning...");
 
-		MACAddress macAddr = etherPacket.getSourceMAC();
 
-		// we only want to learn a new mac
-		if (!table.containsKey(macAddr)) {
+		// we only want to learn a new mac; putIfAbsent keeps the check and the
+		// insert atomic when several workers see the same MAC at once
+		if (!table.containsKey(macAddr) && table.putIfAbsent(macAddr, new PortInfo(port)) == null) {
 			if (dbg) System.out.println("learnt new MAC");
 
-			PortInfo info = new PortInfo(port);
-			table.put(macAddr, info);
-
 			return;
 		}
 
@@ -174,29 +197,28 @@ public class Switch extends Device implements Runnable {
 
 	/**
 	 * Searches the port forwarding table for the provided MAC address.
-	 * @param etherPacket the incoming packet whose srcMAC and dstMAC are needed
+	 * @param src the source MAC of the incoming packet
+	 * @param dst the destination MAC of the incoming packet
 	 * @return the found port Iface object, otherwise null
 	 */
-	private Iface searchTable(Ethernet etherPacket) {
+	private Iface searchTable(MACAddress src, MACAddress dst) {
 		if (dbg) System.out.print("searching...");
 
-		MACAddress src = etherPacket.getSourceMAC();
-		MACAddress dst = etherPacket.getDestinationMAC();
-		
-		// we reset the age for the source MAC
-		if (table.containsKey(src)) {
+		// we reset the age for the source MAC; each entry is read once, since the
+		// aging thread may remove it between a containsKey and a get
+		PortInfo srcInfo = table.get(src);
+		if (srcInfo != null) {
 			if (dbg) System.out.print("resetting source MAC (" + src.toString() + ") age...");
 
-			PortInfo info = table.get(src);
-			info.birth = System.currentTimeMillis();
+			srcInfo.birth = System.currentTimeMillis();
 		}
 
 		// we search for the destination MAC in the table
-		if (table.containsKey(dst)) {
+		PortInfo dstInfo = table.get(dst);
+		if (dstInfo != null) {
 			if (dbg) System.out.println("found");
 
-			PortInfo info = table.get(dst);
-			return info.portID;
+			return dstInfo.portID;
 		} else {
 			if (dbg) System.out.println("not found");
 
@@ -0,0 +1,190 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Coalesces the commands sent to the VNS server into batched writes.
+ * Commands are appended to one buffer that is written out once it holds
+ * FLUSH_SIZE bytes, once its oldest command has waited FLUSH_DELAY_MS, or
+ * when flush is called (the reader does so before it waits for more input),
+ * so the packets a device sends in response to a burst of received packets
+ * go out in a few writes instead of one write each.
+ */
+public class CommandWriter implements Runnable
+{
+	/** Buffered bytes that trigger a write */
+	private static final int FLUSH_SIZE = 64 * 1024;
+
+	/** Longest a command waits in the buffer */
+	private static final long FLUSH_DELAY_MS = 1;
+
+	/** Size of the buffer; a command that fits in no buffer is written alone */
+	private static final int BUFFER_SIZE = FLUSH_SIZE + VNSComm.MAX_COMMAND_SIZE;
+
+	/** Why a batch was written, indexes into flushes */
+	private static final int FLUSH_FULL = 0;
+	private static final int FLUSH_DEADLINE = 1;
+	private static final int FLUSH_IDLE = 2;
+
+	private SocketChannel channel;
+	private ByteBuffer buffer;
+
+	/** Commands in the buffer and when the first of them was added */
+	private int pending;
+	private long firstPending;
+
+	/** Set once a write failed; later commands are dropped */
+	private boolean failed;
+
+	/** Batches written, commands and bytes in them, largest batch in
+	 *  commands, and batches written for each reason */
+	private long batches;
+	private long commands;
+	private long bytes;
+	private int maxBatch;
+	private long[] flushes;
+
+	public CommandWriter(SocketChannel channel)
+	{
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.flushes = new long[3];
+
+		Thread thread = new Thread(this, "vns-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Add a serialized command to the current batch.
+	 * @param command the serialized command
+	 * @return false if an earlier write failed, otherwise true
+	 */
+	public boolean write(byte[] command)
+	{ return this.write(command, 0, command.length); }
+
+	/**
+	 * Add a serialized command to the current batch; the bytes are copied, 
+	 * so the caller may reuse the array.
+	 * @param data array holding the command
+	 * @param offset start of the command in the array
+	 * @param length length of the command
+	 * @return false if an earlier write failed, otherwise true
+	 */
+	public synchronized boolean write(byte[] data, int offset, int length)
+	{
+		if (this.failed)
+		{ return false; }
+
+		if (length > this.buffer.remaining())
+		{ this.flush(FLUSH_FULL); }
+		if (length > this.buffer.remaining())
+		{
+			// Larger than the buffer, send as a batch of its own
+			this.send(ByteBuffer.wrap(data, offset, length), 1);
+			return !this.failed;
+		}
+
+		this.buffer.put(data, offset, length);
+		if (0 == this.pending)
+		{
+			this.firstPending = System.currentTimeMillis();
+			this.notify();
+		}
+		this.pending++;
+
+		if (this.buffer.position() >= FLUSH_SIZE)
+		{ this.flush(FLUSH_FULL); }
+		return !this.failed;
+	}
+
+	/**
+	 * Write out the current batch now.
+	 * @return false if this or an earlier write failed, otherwise true
+	 */
+	public synchronized boolean flush()
+	{
+		this.flush(FLUSH_IDLE);
+		return !this.failed;
+	}
+
+	private void flush(int reason)
+	{
+		if (0 == this.pending)
+		{ return; }
+		this.flushes[reason]++;
+		this.buffer.flip();
+		this.send(this.buffer, this.pending);
+		this.buffer.clear();
+		this.pending = 0;
+	}
+
+	private void send(ByteBuffer batch, int count)
+	{
+		this.batches++;
+		this.commands += count;
+		this.bytes += batch.remaining();
+		this.maxBatch = Math.max(this.maxBatch, count);
+		try
+		{
+			while (batch.hasRemaining())
+			{ this.channel.write(batch); }
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing packet");
+			this.failed = true;
+		}
+	}
+
+	/**
+	 * Write out batches whose oldest command has waited FLUSH_DELAY_MS, for
+	 * commands sent while the reader is busy or from other threads.
+	 */
+	public void run()
+	{
+		synchronized (this)
+		{
+			try
+			{
+				while (true)
+				{
+					if (0 == this.pending)
+					{
+						this.wait();
+						continue;
+					}
+					long wait = this.firstPending + FLUSH_DELAY_MS
+							- System.currentTimeMillis();
+					if (wait > 0)
+					{
+						this.wait(wait);
+						continue;
+					}
+					this.flush(FLUSH_DEADLINE);
+				}
+			}
+			catch (InterruptedException e)
+			{ }
+		}
+	}
+
+	/**
+	 * Print the number and size of the batches written so far.
+	 */
+	public synchronized void printStats()
+	{
+		System.out.println(String.format(
+				"Sent %d commands in %d writes (avg %.1f commands, %.1f KB; max %d)",
+				this.commands, this.batches,
+				0 == this.batches ? 0.0 : (double)this.commands / this.batches,
+				0 == this.batches ? 0.0 : this.bytes / 1024.0 / this.batches,
+				this.maxBatch));
+		System.out.println(String.format(
+				"  writes when full %d, on deadline %d, when idle %d",
+				this.flushes[FLUSH_FULL], this.flushes[FLUSH_DEADLINE],
+				this.flushes[FLUSH_IDLE]));
+	}
+}